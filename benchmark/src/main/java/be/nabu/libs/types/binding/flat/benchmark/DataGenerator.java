@@ -0,0 +1,253 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.flat.FlatBinding;
+import be.nabu.libs.types.java.BeanInstance;
+
+/**
+ * Generates the data for the benchmarks. The records are derived from a fixed seed so the same layout and size always result in the same file.
+ * The files are marshalled with the binding itself and cached in the temporary directory so large files are only generated once.
+ */
+class DataGenerator {
+
+	// bump this whenever the generated data changes, it invalidates the cached files
+	private static final int VERSION = 1;
+	private static final long SEED = 1403;
+	// the amount of records that is marshalled to estimate the size of a record
+	private static final int SAMPLE_SIZE = 1000;
+	// the amount of employees per company in the repeated layout
+	private static final int COMPANY_SIZE = 1000;
+	// 2014/01/01 00:00:00 UTC
+	private static final long EPOCH = 1388534400000l;
+	private static final long DAY = 86400000l;
+	
+	private static final String [] FIRST_NAMES = { "John", "Jane", "Alexander", "Marie", "Pieter", "Sofie", "Karel", "An", "Jozef", "Elisabeth" };
+	private static final String [] LAST_NAMES = { "Doe", "Peeters", "Janssens", "Maes", "Jacobs", "Mertens", "Willems", "Claes", "Goossens", "Wouters" };
+
+	/**
+	 * Parses a size like "64KB", "16MB" or "1GB"
+	 */
+	static long parseSize(String size) {
+		String upper = size.trim().toUpperCase();
+		long unit = 1;
+		if (upper.endsWith("GB")) {
+			unit = 1024l * 1024 * 1024;
+		}
+		else if (upper.endsWith("MB")) {
+			unit = 1024l * 1024;
+		}
+		else if (upper.endsWith("KB")) {
+			unit = 1024l;
+		}
+		if (unit > 1) {
+			upper = upper.substring(0, upper.length() - 2);
+		}
+		else if (upper.endsWith("B")) {
+			upper = upper.substring(0, upper.length() - 1);
+		}
+		return Long.parseLong(upper.trim()) * unit;
+	}
+	
+	/**
+	 * Returns a file of (approximately) the given size in bytes, it is generated if it does not exist yet
+	 */
+	static File getFile(FlatBinding binding, Layout layout, long size) throws IOException {
+		File file = new File(System.getProperty("java.io.tmpdir"), "flat-benchmark-v" + VERSION + "-" + layout.name().toLowerCase() + "-" + binding.getCharset().name() + "-" + size + ".txt");
+		if (!file.exists()) {
+			File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary), 65536);
+			try {
+				generate(binding, layout, getRecordCount(binding, layout, size), output);
+			}
+			finally {
+				output.close();
+			}
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+				throw new IOException("Could not generate " + file);
+			}
+		}
+		return file;
+	}
+	
+	/**
+	 * Marshals the given amount of records, they are never all in memory at the same time
+	 */
+	static void generate(FlatBinding binding, Layout layout, long records, OutputStream output) throws IOException {
+		Iterator<Object> iterator = records(layout, records);
+		if (layout == Layout.REPEATED) {
+			while (iterator.hasNext()) {
+				binding.marshal(output, newRoot(layout, Math.min(records, COMPANY_SIZE)), layout.getList(), limit(iterator, COMPANY_SIZE));
+				records -= COMPANY_SIZE;
+			}
+		}
+		else {
+			binding.marshal(output, newRoot(layout, records), layout.getList(), iterator);
+		}
+		output.flush();
+	}
+
+	/**
+	 * Estimates the amount of records that are needed to get a file of the given size by marshalling a sample
+	 */
+	static long getRecordCount(FlatBinding binding, Layout layout, long size) throws IOException {
+		CountingOutputStream empty = new CountingOutputStream();
+		generate(binding, layout, 0, empty);
+		CountingOutputStream sample = new CountingOutputStream();
+		generate(binding, layout, SAMPLE_SIZE, sample);
+		double recordSize = (sample.getCount() - empty.getCount()) / (double) SAMPLE_SIZE;
+		return Math.max(1, (long) ((size - empty.getCount()) / recordSize));
+	}
+	
+	/**
+	 * Builds the root content with all the records in memory
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static ComplexContent newContent(Layout layout, long records) {
+		List list = new ArrayList();
+		Iterator<Object> iterator = records(layout, records);
+		while (iterator.hasNext()) {
+			list.add(iterator.next());
+		}
+		ComplexContent content = newRoot(layout, records);
+		content.set(layout.getList(), list);
+		return content;
+	}
+	
+	static ComplexContent newRoot(Layout layout, long records) {
+		if (layout == Layout.FORMATTED) {
+			Ledger ledger = new Ledger();
+			ledger.setName("Nabu");
+			ledger.setCount(records);
+			return new BeanInstance<Ledger>(ledger);
+		}
+		else {
+			Company company = new Company();
+			company.setName("Nabu");
+			// the delimited header has a length of 27
+			company.setUnit("Organizational");
+			company.setAddress("Nabu HQ");
+			company.setBillingNumber("BE666-66-66");
+			return new BeanInstance<Company>(company);
+		}
+	}
+	
+	static Iterator<Object> records(final Layout layout, final long amount) {
+		final Random random = new Random(SEED);
+		return new Iterator<Object>() {
+			private long index;
+			@Override
+			public boolean hasNext() {
+				return index < amount;
+			}
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return layout == Layout.FORMATTED ? newTransaction(random, index++) : newEmployee(random, index++);
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	private static Company.Employee newEmployee(Random random, long index) {
+		Company.Employee employee = new Company.Employee();
+		employee.setId("" + index);
+		employee.setFirstName(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+		employee.setLastName(LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+		employee.setAge(18 + random.nextInt(50));
+		// the start day is optional
+		if (random.nextInt(3) == 0) {
+			employee.setStartDay(new Date(EPOCH + random.nextInt(3650) * DAY));
+		}
+		return employee;
+	}
+	
+	private static Ledger.Transaction newTransaction(Random random, long index) {
+		Ledger.Transaction transaction = new Ledger.Transaction();
+		transaction.setId(index);
+		transaction.setAccount(String.format("BE%02d%012d", random.nextInt(100), (long) random.nextInt(Integer.MAX_VALUE)));
+		long booked = EPOCH + random.nextInt(3650) * DAY;
+		transaction.setBooked(new Date(booked));
+		transaction.setValued(new Date(booked + random.nextInt(86400) * 1000l));
+		transaction.setAmount(BigDecimal.valueOf(random.nextInt(10000000), 2));
+		transaction.setRate(random.nextInt(100000) / 1000d);
+		transaction.setQuantity(1 + random.nextInt(1000));
+		transaction.setSettled(random.nextBoolean());
+		return transaction;
+	}
+	
+	private static <T> Iterator<T> limit(final Iterator<T> iterator, final int amount) {
+		return new Iterator<T>() {
+			private int index;
+			@Override
+			public boolean hasNext() {
+				return index < amount && iterator.hasNext();
+			}
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				index++;
+				return iterator.next();
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Discards the bytes, only the amount is kept
+	 */
+	static class CountingOutputStream extends OutputStream {
+		private long count;
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+		long getCount() {
+			return count;
+		}
+	}
+}
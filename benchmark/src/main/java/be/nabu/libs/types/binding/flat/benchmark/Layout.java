@@ -0,0 +1,55 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import be.nabu.libs.types.DefinedTypeResolverFactory;
+import be.nabu.libs.types.binding.flat.FlatBinding;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig;
+
+/**
+ * The flat file layouts that are benchmarked, each one has a binding and the name of the list that holds the bulk of the records
+ */
+public enum Layout {
+	// separator based records with regex matches and an optional date
+	DELIMITED("delimited.xml", "employees"),
+	// records of fixed length fields
+	FIXED("fixed.xml", "employees"),
+	// the delimited layout with repeat="true", the file contains a lot of small companies
+	REPEATED("repeated.xml", "employees"),
+	// separator based records where almost every field goes through a formatter
+	FORMATTED("formatted.xml", "transactions");
+	
+	private String binding, list;
+
+	private Layout(String binding, String list) {
+		this.binding = binding;
+		this.list = list;
+	}
+	
+	public String getList() {
+		return list;
+	}
+	
+	public FlatBinding newBinding(Charset charset) throws IOException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource(binding));
+		return new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, charset);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAttribute;
+
+public class Ledger {
+
+	private String name;
+	private Long count;
+	
+	private List<Transaction> transactions;
+	
+	@XmlAttribute
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	public Long getCount() {
+		return count;
+	}
+	public void setCount(Long count) {
+		this.count = count;
+	}
+
+	public List<Transaction> getTransactions() {
+		return transactions;
+	}
+	public void setTransactions(List<Transaction> transactions) {
+		this.transactions = transactions;
+	}
+
+	public static class Transaction {
+		private Long id;
+		private String account;
+		private Date booked, valued;
+		private BigDecimal amount;
+		private Double rate;
+		private Integer quantity;
+		private Boolean settled;
+		
+		@XmlAttribute
+		public Long getId() {
+			return id;
+		}
+		public void setId(Long id) {
+			this.id = id;
+		}
+		public String getAccount() {
+			return account;
+		}
+		public void setAccount(String account) {
+			this.account = account;
+		}
+		public Date getBooked() {
+			return booked;
+		}
+		public void setBooked(Date booked) {
+			this.booked = booked;
+		}
+		public Date getValued() {
+			return valued;
+		}
+		public void setValued(Date valued) {
+			this.valued = valued;
+		}
+		public BigDecimal getAmount() {
+			return amount;
+		}
+		public void setAmount(BigDecimal amount) {
+			this.amount = amount;
+		}
+		public Double getRate() {
+			return rate;
+		}
+		public void setRate(Double rate) {
+			this.rate = rate;
+		}
+		public Integer getQuantity() {
+			return quantity;
+		}
+		public void setQuantity(Integer quantity) {
+			this.quantity = quantity;
+		}
+		public Boolean getSettled() {
+			return settled;
+		}
+		public void setSettled(Boolean settled) {
+			this.settled = settled;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.flat.FlatBinding;
+
+/**
+ * Marshals a large list of records that is built in memory before the benchmark starts, the output is counted and discarded.
+ * The repeated layout is not included as it marshals a single instance exactly like the delimited one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MarshalBenchmark {
+
+	@Param({ "DELIMITED", "FIXED", "FORMATTED" })
+	public Layout layout;
+	
+	@Param({ "1000", "100000" })
+	public int records;
+	
+	@Param({ "UTF-8" })
+	public String charset;
+	
+	private FlatBinding binding;
+	private ComplexContent content;
+	private List<?> list;
+	
+	@Setup
+	public void setup() {
+		try {
+			binding = layout.newBinding(Charset.forName(charset));
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		content = DataGenerator.newContent(layout, records);
+		list = (List<?>) content.get(layout.getList());
+	}
+	
+	/**
+	 * Marshals the list in the content
+	 */
+	@Benchmark
+	public long marshal() throws IOException {
+		DataGenerator.CountingOutputStream output = new DataGenerator.CountingOutputStream();
+		binding.marshal(output, content);
+		return output.getCount();
+	}
+	
+	/**
+	 * Marshals the same records but they are taken from an iterator
+	 */
+	@Benchmark
+	public long streamed() throws IOException {
+		DataGenerator.CountingOutputStream output = new DataGenerator.CountingOutputStream();
+		binding.marshal(output, content, layout.getList(), list.iterator());
+		return output.getCount();
+	}
+}
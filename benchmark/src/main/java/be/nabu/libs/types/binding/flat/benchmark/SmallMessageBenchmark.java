@@ -0,0 +1,79 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.flat.FlatBinding;
+
+/**
+ * Parses the same small message over and over with and without pooling the parse contexts, for small messages setting up the parse is a large part of the cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SmallMessageBenchmark {
+
+	@Param({ "DELIMITED", "FIXED" })
+	public Layout layout;
+	
+	@Param({ "true", "false" })
+	public boolean pooled;
+	
+	@Param({ "UTF-8" })
+	public String charset;
+	
+	private FlatBinding binding;
+	private byte [] message;
+	
+	@Setup
+	public void setup() throws IOException {
+		binding = layout.newBinding(Charset.forName(charset));
+		binding.setPooled(pooled);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		DataGenerator.generate(binding, layout, 2, output);
+		message = output.toByteArray();
+	}
+	
+	@Benchmark
+	public ComplexContent unmarshal() throws IOException, ParseException {
+		return binding.unmarshal(new ByteArrayInputStream(message), new Window[0]);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.flat.FlatBinding;
+
+/**
+ * Parses a generated file per layout and size. Use "-p size=1GB" for large files, the windowed parse is the only one that does not keep all the records in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UnmarshalBenchmark {
+
+	@Param({ "DELIMITED", "FIXED", "REPEATED", "FORMATTED" })
+	public Layout layout;
+	
+	@Param({ "64KB", "16MB" })
+	public String size;
+	
+	@Param({ "UTF-8" })
+	public String charset;
+	
+	private FlatBinding binding;
+	private File file;
+	private Window window;
+	
+	@Setup
+	public void setup() throws IOException {
+		binding = layout.newBinding(Charset.forName(charset));
+		file = DataGenerator.getFile(binding, layout, DataGenerator.parseSize(size));
+		window = new Window(DataGenerator.newRoot(layout, 0).getType().getName() + "/" + layout.getList(), 100, 100);
+	}
+	
+	/**
+	 * Reads the file as a stream, this goes through the charset decoder
+	 */
+	@Benchmark
+	public ComplexContent plain() throws IOException, ParseException {
+		InputStream input = new FileInputStream(file);
+		try {
+			return binding.unmarshal(input, new Window[0]);
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Memory maps the file
+	 */
+	@Benchmark
+	public ComplexContent mapped() throws IOException, ParseException {
+		return binding.unmarshal(file);
+	}
+	
+	/**
+	 * Memory maps the file and only keeps a window of records in memory
+	 */
+	@Benchmark
+	public ComplexContent windowed() throws IOException, ParseException {
+		return binding.unmarshal(file, window);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import be.nabu.libs.types.binding.flat.FlatBinding;
+import be.nabu.libs.types.binding.flat.FlatBindingListener;
+import be.nabu.libs.types.binding.flat.ParseStatistics;
+import be.nabu.libs.types.binding.flat.ParseStatistics.RecordStatistics;
+
+/**
+ * Emits a JFR event for every parse and one for every record type in that parse. The events are only created when they are enabled in the recording.
+ * The flight recorder events (jdk.jfr) are not available on Java 8 so they live in this separate module, the binding itself does not depend on it.
+ */
+public class FlatBindingEvents implements FlatBindingListener {
+
+	@Override
+	public void parsed(FlatBinding binding, ParseStatistics statistics) {
+		ParseEvent event = new ParseEvent();
+		if (event.shouldCommit()) {
+			event.type = statistics.getType();
+			event.successful = statistics.isSuccessful();
+			event.characters = statistics.getCharacters();
+			event.parseTime = statistics.getDuration();
+			event.formatterTime = statistics.getFormatterTime();
+			event.formatterCalls = statistics.getFormatterCalls();
+			event.pushback = statistics.getPushback();
+			event.maxRecordLength = statistics.getMaxRecordLength();
+			event.lookAhead = statistics.getLookAhead();
+			event.commit();
+		}
+		if (RecordEvent.TYPE.isEnabled()) {
+			for (RecordStatistics record : statistics.getRecords()) {
+				RecordEvent recordEvent = new RecordEvent();
+				recordEvent.type = statistics.getType();
+				recordEvent.record = record.getName();
+				recordEvent.matched = record.getMatched();
+				recordEvent.failed = record.getFailed();
+				recordEvent.resets = record.getResets();
+				recordEvent.characters = record.getCharacters();
+				recordEvent.commit();
+			}
+		}
+	}
+	
+	@Name("be.nabu.libs.types.binding.flat.Parse")
+	@Label("Flat Parse")
+	@Category({ "Nabu", "Flat Binding" })
+	@Description("A flat file that was parsed")
+	static class ParseEvent extends Event {
+		@Label("Type")
+		String type;
+		@Label("Successful")
+		boolean successful;
+		@Label("Characters")
+		long characters;
+		@Label("Parse Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long parseTime;
+		@Label("Formatter Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long formatterTime;
+		@Label("Formatter Calls")
+		long formatterCalls;
+		@Label("Pushback")
+		@Description("The amount of characters that were read more than once")
+		long pushback;
+		@Label("Max Record Length")
+		long maxRecordLength;
+		@Label("Look Ahead")
+		long lookAhead;
+	}
+	
+	@Name("be.nabu.libs.types.binding.flat.Record")
+	@Label("Flat Record")
+	@Category({ "Nabu", "Flat Binding" })
+	@Description("The statistics of a record type in a single parse")
+	static class RecordEvent extends Event {
+		static final EventType TYPE = EventType.getEventType(RecordEvent.class);
+		@Label("Type")
+		String type;
+		@Label("Record")
+		String record;
+		@Label("Matched")
+		long matched;
+		@Label("Failed")
+		@Description("The amount of trial parses that failed")
+		long failed;
+		@Label("Resets")
+		long resets;
+		@Label("Characters")
+		long characters;
+	}
+}
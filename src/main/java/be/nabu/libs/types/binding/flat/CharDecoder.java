@@ -0,0 +1,156 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Decodes the bytes of a resource into characters. The decoder and its byte and character buffers can be reused for another resource after a reset.
+ * The characters are decoded in large batches so there is no need for an additional read buffer.
+ */
+class CharDecoder implements ReadableContainer<CharBuffer> {
+
+	private static final int BYTE_BUFFER_SIZE = 8192;
+
+	private Charset charset;
+	private CharsetDecoder decoder;
+	private ReadableContainer<be.nabu.utils.io.api.ByteBuffer> parent;
+	private byte [] bytes = new byte[BYTE_BUFFER_SIZE];
+	private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+	private char [] chars;
+	private java.nio.CharBuffer charBuffer;
+	private boolean eof, flushed;
+	// if set, the decoder reports the characters it decoded and the bytes it consumed for them
+	private Checkpoints checkpoints;
+	private long decoded, consumed;
+
+	CharDecoder(Charset charset) {
+		this.charset = charset;
+		this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Starts decoding the given bytes, the character buffer is (re)allocated if it is smaller than the requested size
+	 */
+	CharDecoder reset(ReadableContainer<be.nabu.utils.io.api.ByteBuffer> parent, int size) {
+		return reset(parent, size, null);
+	}
+	
+	/**
+	 * Starts decoding the given bytes from the start and reports the checkpoints while decoding
+	 */
+	CharDecoder reset(ReadableContainer<be.nabu.utils.io.api.ByteBuffer> parent, int size, Checkpoints checkpoints) {
+		this.parent = parent;
+		this.checkpoints = checkpoints;
+		this.decoded = 0;
+		this.consumed = 0;
+		decoder.reset();
+		byteBuffer.clear();
+		byteBuffer.flip();
+		if (chars == null || chars.length < size) {
+			chars = new char[size];
+			charBuffer = java.nio.CharBuffer.wrap(chars);
+		}
+		charBuffer.clear();
+		charBuffer.flip();
+		eof = false;
+		flushed = false;
+		return this;
+	}
+
+	/**
+	 * Drops the reference to the bytes, the buffers are kept
+	 */
+	void release() {
+		parent = null;
+		checkpoints = null;
+	}
+
+	@Override
+	public long read(CharBuffer target) throws IOException {
+		long total = 0;
+		while (true) {
+			if (!charBuffer.hasRemaining() && !fill()) {
+				return total == 0 ? -1 : total;
+			}
+			int available = charBuffer.remaining();
+			long written = target.write(IOUtils.wrap(chars, charBuffer.position(), available, true));
+			charBuffer.position(charBuffer.position() + (int) written);
+			total += written;
+			// the target is full
+			if (written < available) {
+				return total;
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (flushed) {
+			return false;
+		}
+		charBuffer.clear();
+		while (charBuffer.position() == 0) {
+			if (!eof) {
+				byteBuffer.compact();
+				long read = parent.read(IOUtils.wrap(bytes, byteBuffer.position(), byteBuffer.remaining(), false));
+				if (read <= 0) {
+					eof = true;
+				}
+				else {
+					byteBuffer.position(byteBuffer.position() + (int) read);
+				}
+				byteBuffer.flip();
+			}
+			int position = byteBuffer.position();
+			CoderResult result = decoder.decode(byteBuffer, charBuffer, eof);
+			consumed += byteBuffer.position() - position;
+			// if the characters don't fit, we continue decoding on the next fill
+			if (eof && !result.isOverflow()) {
+				decoder.flush(charBuffer);
+				flushed = true;
+				break;
+			}
+		}
+		decoded += charBuffer.position();
+		if (checkpoints != null) {
+			checkpoints.decoded(decoded, consumed);
+		}
+		charBuffer.flip();
+		return charBuffer.hasRemaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (parent != null) {
+			parent.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Windowed lists register the character offsets of their records, to reload a page we need to know where that character is in the bytes.
+ * While parsing, the decoder reports the amount of characters it decoded and the amount of bytes it consumed for them, we regularly store such a pair as a checkpoint.
+ * The bytes are counted as they are consumed so malformed input that is replaced by the decoder does not shift the offsets.
+ * A reload can then skip to the byte offset of the nearest checkpoint and only has to decode the characters after it.
+ * This is only possible for charsets where decoding can start at any character: fixed width charsets and UTF-8.
+ */
+class Checkpoints {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// the minimum amount of characters between two checkpoints
+	private long interval;
+	private long [] chars = new long[64], bytes = new long[64];
+	private int size;
+	private long lastCheckpoint;
+
+	/**
+	 * Checkpoints that were written before can be read again if the charset is the same
+	 */
+	static Checkpoints read(DataInput input, Charset charset) throws IOException {
+		Checkpoints checkpoints = newInstance(charset, input.readLong());
+		int size = input.readInt();
+		if (checkpoints == null) {
+			throw new IOException("Checkpoints are not supported for " + charset);
+		}
+		checkpoints.chars = new long[Math.max(size, 1)];
+		checkpoints.bytes = new long[Math.max(size, 1)];
+		for (int i = 0; i < size; i++) {
+			checkpoints.chars[i] = input.readLong();
+			checkpoints.bytes[i] = input.readLong();
+		}
+		checkpoints.size = size;
+		return checkpoints;
+	}
+	
+	synchronized void write(DataOutput output) throws IOException {
+		output.writeLong(interval);
+		output.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			output.writeLong(chars[i]);
+			output.writeLong(bytes[i]);
+		}
+	}
+
+	private Checkpoints(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns null if we can not calculate the byte length for the given charset
+	 */
+	static Checkpoints newInstance(Charset charset, long interval) {
+		if (UTF8.equals(charset) || (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == charset.newEncoder().averageBytesPerChar())) {
+			return new Checkpoints(interval);
+		}
+		return null;
+	}
+
+	private synchronized void add(long charOffset, long byteOffset) {
+		if (size == chars.length) {
+			chars = Arrays.copyOf(chars, size * 2);
+			bytes = Arrays.copyOf(bytes, size * 2);
+		}
+		chars[size] = charOffset;
+		bytes[size++] = byteOffset;
+	}
+
+	/**
+	 * Returns the character offset and byte offset of the last checkpoint at or before the given character offset
+	 */
+	synchronized long [] floor(long charOffset) {
+		int index = Arrays.binarySearch(chars, 0, size, charOffset);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return index < 0 ? new long [] { 0, 0 } : new long [] { chars[index], bytes[index] };
+	}
+
+	/**
+	 * Called by the decoder at a point where the decoded characters correspond exactly with the consumed bytes (both counted from the start of the source)
+	 */
+	void decoded(long charOffset, long byteOffset) {
+		if (charOffset - lastCheckpoint >= interval) {
+			add(charOffset, byteOffset);
+			lastCheckpoint = charOffset;
+		}
+	}
+}
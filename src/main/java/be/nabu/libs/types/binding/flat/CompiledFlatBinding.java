@@ -0,0 +1,577 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Field;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Fragment;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Record;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+
+/**
+ * The flat binding config is compiled against a specific complex type before it is used to parse or format.
+ * This resolves the parent records, normalizes the separators, compiles the regexes and looks up the elements and their occurrences once instead of for every record.
+ * Once compiled, nothing in the tree is modified anymore.
+ */
+public class CompiledFlatBinding {
+
+	// the default buffer of a delimited fragment that has no (max) length, it reads ahead this much
+	static final int DEFAULT_DELIMITED_BUFFER_SIZE = 4096;
+	// leave some room for peeks and remainders that are pushed back
+	static final long MIN_LOOK_AHEAD = DEFAULT_DELIMITED_BUFFER_SIZE * 2;
+
+	private ComplexType type;
+	private CompiledRecord root;
+	private long lookAhead;
+
+	public CompiledFlatBinding(FlatBindingConfig config, ComplexType type) {
+		this.type = type;
+		Record record = new Record();
+		record.setDescription("Binding Root");
+		if (config.getRecord() != null) {
+			for (Fragment child : config.getChildren()) {
+				if (child instanceof Record && config.getRecord().equals(((Record) child).getName())) {
+					record.getChildren().add(child);
+					break;
+				}
+			}
+		}
+		else {
+			record.setChildren(config.getChildren());
+		}
+		this.root = new CompiledRecord(config, record, type);
+		this.lookAhead = Math.max(MIN_LOOK_AHEAD, getLookAhead(root, true, config.getMaxLookAhead()));
+	}
+
+	public ComplexType getType() {
+		return type;
+	}
+
+	public CompiledRecord getRoot() {
+		return root;
+	}
+
+	/**
+	 * The amount of characters the parser has to be able to go back to retry a fragment
+	 */
+	public long getLookAhead() {
+		return lookAhead;
+	}
+
+	/**
+	 * A record that is bounded never needs more than its own extent. Otherwise we need its fields combined with the largest child record.
+	 * The marks are moved after every child record so we don't need to combine the child records.
+	 * If anything is not bounded, we need at least the configured max look ahead.
+	 */
+	private static long getLookAhead(CompiledRecord record, boolean root, long maxLookAhead) {
+		long extent = root ? -1 : getMaxExtent(record);
+		if (extent >= 0) {
+			return extent;
+		}
+		boolean bounded = true;
+		long fields = 0, records = 0;
+		for (CompiledFragment child : record.getChildren()) {
+			if (child instanceof CompiledRecord) {
+				records = Math.max(records, getLookAhead((CompiledRecord) child, false, maxLookAhead));
+			}
+			else {
+				long childExtent = getMaxExtent(child);
+				if (childExtent < 0) {
+					bounded = false;
+				}
+				else {
+					fields += childExtent;
+				}
+			}
+		}
+		return bounded ? fields + records : Math.max(fields + records, maxLookAhead);
+	}
+
+	/**
+	 * The maximum amount of characters a fragment (including its separator) can span, this is -1 if it is not bounded.
+	 * A delimited fragment without a (max) length spans at least the buffer it reads ahead in.
+	 */
+	static long getMaxExtent(CompiledFragment fragment) {
+		long separator = 0;
+		if (fragment.getParseSeparator() != null) {
+			separator = fragment.getSeparatorLength() == null ? fragment.getParseSeparator().length() : fragment.getSeparatorLength();
+		}
+		if (fragment.getLength() != null) {
+			return fragment.getLength() + separator;
+		}
+		else if (fragment.getMaxLength() != null) {
+			return fragment.getMaxLength() + separator;
+		}
+		else if (!(fragment instanceof CompiledRecord)) {
+			return -1;
+		}
+		long extent = 0;
+		for (CompiledFragment child : ((CompiledRecord) fragment).getChildren()) {
+			long childExtent = getMaxExtent(child);
+			int occurrences = child instanceof CompiledRecord ? ((CompiledRecord) child).getMaxOccurs() : 1;
+			if (childExtent < 0 || occurrences == 0) {
+				return -1;
+			}
+			extent += childExtent * occurrences;
+		}
+		return separator > 0 ? Math.max(extent, DEFAULT_DELIMITED_BUFFER_SIZE) + separator : extent;
+	}
+
+	static String normalizeSeparator(String separator) {
+		return separator == null ? null : separator.replace("\\n", "\n")
+			.replace("\\r", "\r");
+	}
+
+	abstract public static class CompiledFragment {
+		private Fragment fragment;
+		private String parseSeparator, formatSeparator, map;
+		private Integer separatorLength, length, maxLength, minLength;
+		private ContentAccessor accessor;
+
+		CompiledFragment(Fragment fragment) {
+			this.fragment = fragment;
+			this.parseSeparator = normalizeSeparator(fragment.getParseSeparator());
+			this.formatSeparator = normalizeSeparator(fragment.getFormatSeparator());
+			this.separatorLength = fragment.getSeparatorLength();
+			this.length = fragment.getLength();
+			this.maxLength = fragment.getMaxLength();
+			this.minLength = fragment.getMinLength();
+			this.map = fragment.getMap();
+			this.accessor = map == null ? null : new ContentAccessor(map);
+		}
+
+		/**
+		 * The original (resolved) fragment this was compiled from
+		 */
+		public Fragment getFragment() {
+			return fragment;
+		}
+		public String getParseSeparator() {
+			return parseSeparator;
+		}
+		public String getFormatSeparator() {
+			return formatSeparator;
+		}
+		public Integer getSeparatorLength() {
+			return separatorLength;
+		}
+		public Integer getLength() {
+			return length;
+		}
+		public Integer getMaxLength() {
+			return maxLength;
+		}
+		public Integer getMinLength() {
+			return minLength;
+		}
+		public String getMap() {
+			return map;
+		}
+		/**
+		 * Gets and sets the value the fragment is mapped to, this is null if the fragment is not mapped
+		 */
+		ContentAccessor getAccessor() {
+			return accessor;
+		}
+
+		abstract public boolean isIdentifiable();
+
+		@Override
+		public String toString() {
+			return fragment.toString();
+		}
+	}
+
+	public static class CompiledRecord extends CompiledFragment {
+		private List<CompiledFragment> children;
+		private Element<?> element;
+		private ComplexType type;
+		private int typeMinOccurs = 1, typeMaxOccurs = 1, minOccurs, maxOccurs;
+		private boolean list, identifiable;
+		private Discriminator discriminator;
+		private Integer slicedLength;
+		private boolean scannable;
+
+		CompiledRecord(FlatBindingConfig config, Record record, ComplexType parentType) {
+			this(config, record, parentType, null);
+		}
+		
+		/**
+		 * If the type is given, the record is compiled against it instead of the element it is mapped to, e.g. to parse the record on its own
+		 */
+		CompiledRecord(FlatBindingConfig config, Record record, ComplexType parentType, ComplexType type) {
+			super(record);
+			if (record.getMap() != null) {
+				element = parentType == null ? null : parentType.get(record.getMap());
+				if (element != null) {
+					Value<Integer> typeMinOccurs = element.getProperty(MinOccursProperty.getInstance());
+					Value<Integer> typeMaxOccurs = element.getProperty(MaxOccursProperty.getInstance());
+					if (typeMinOccurs != null) {
+						this.typeMinOccurs = typeMinOccurs.getValue();
+					}
+					if (typeMaxOccurs != null) {
+						this.typeMaxOccurs = typeMaxOccurs.getValue();
+					}
+					if (element.getType() instanceof ComplexType) {
+						type = (ComplexType) element.getType();
+					}
+				}
+			}
+			// unmapped records work on the same instance as their parent
+			else {
+				type = parentType;
+			}
+			if (type != null) {
+				this.type = type;
+			}
+			list = typeMaxOccurs != 1;
+			minOccurs = record.getMinOccurs() == null ? typeMinOccurs : record.getMinOccurs();
+			maxOccurs = record.getMaxOccurs() == null ? typeMaxOccurs : record.getMaxOccurs();
+
+			List<CompiledFragment> children = new ArrayList<CompiledFragment>();
+			// if the mapped element does not exist or is not complex, the parser will complain when it gets here, there is nothing to compile against
+			if (record.getMap() == null || type != null) {
+				for (Fragment child : record.getChildren()) {
+					CompiledFragment compiled = child instanceof Record
+						? new CompiledRecord(config, ((Record) child).resolve(config.getChildren()), type)
+						: new CompiledField((Field) child, type);
+					children.add(compiled);
+					if (compiled.isIdentifiable()) {
+						identifiable = true;
+					}
+				}
+			}
+			this.children = Collections.unmodifiableList(children);
+			this.discriminator = Discriminator.build(this);
+			int slicedLength = 0;
+			for (CompiledFragment child : children) {
+				if (!(child instanceof CompiledField) || child.getParseSeparator() != null || child.getLength() == null) {
+					slicedLength = -1;
+					break;
+				}
+				slicedLength += child.getLength();
+			}
+			this.slicedLength = slicedLength > 0 ? slicedLength : null;
+			scannable = getParseSeparator() != null && !children.isEmpty();
+			for (CompiledFragment child : children) {
+				if (!(child instanceof CompiledField) || child.getLength() != null || child.getMaxLength() != null || (child.getParseSeparator() != null && (child.getSeparatorLength() != null || child.getParseSeparator().isEmpty()))) {
+					scannable = false;
+					break;
+				}
+			}
+		}
+
+		public List<CompiledFragment> getChildren() {
+			return children;
+		}
+		/**
+		 * The element this record is mapped to (if any), it is null if the mapped element does not exist
+		 */
+		public Element<?> getElement() {
+			return element;
+		}
+		/**
+		 * The type of the instance that the child fragments are mapped to
+		 */
+		public ComplexType getType() {
+			return type;
+		}
+		public int getTypeMaxOccurs() {
+			return typeMaxOccurs;
+		}
+		/**
+		 * The min occurs of the record, the record configuration overrides the type definition
+		 */
+		public int getMinOccurs() {
+			return minOccurs;
+		}
+		/**
+		 * The max occurs of the record, the record configuration overrides the type definition, 0 means unbounded
+		 */
+		public int getMaxOccurs() {
+			return maxOccurs;
+		}
+		/**
+		 * Whether the mapped element is a list
+		 */
+		public boolean isList() {
+			return list;
+		}
+		@Override
+		public boolean isIdentifiable() {
+			return identifiable;
+		}
+		/**
+		 * A list of records that are delimited by a fixed separator and have an identifying field can be split on the separator and parsed in parallel
+		 */
+		public boolean isParallelizable() {
+			return list && getParseSeparator() != null && getSeparatorLength() == null && identifiable;
+		}
+		/**
+		 * If the record only contains fixed length fields, this is the total length of the fields, otherwise it is null
+		 */
+		public Integer getSlicedLength() {
+			return slicedLength;
+		}
+		/**
+		 * A delimited record that only contains fields that are delimited by a literal separator (or take the rest of the record) can be split with a single scan
+		 */
+		public boolean isScannable() {
+			return scannable;
+		}
+		/**
+		 * The fixed values at known positions that any instance of this record must start with, this is null if we can not deduce anything
+		 */
+		public Discriminator getDiscriminator() {
+			return discriminator;
+		}
+	}
+	
+	/**
+	 * A discriminator contains the literal values (and their offset) that a record has to start with.
+	 * It can be checked against the first characters of the input to see if the record is a candidate without doing a full trial parse.
+	 * It only contains values that would fail the parse if they do not match so a failed discriminator is always a failed record.
+	 */
+	public static class Discriminator {
+		private int [] offsets;
+		private String [] values;
+		private int length;
+		
+		private Discriminator(List<Integer> offsets, List<String> values) {
+			this.offsets = new int[offsets.size()];
+			this.values = values.toArray(new String[values.size()]);
+			for (int i = 0; i < this.offsets.length; i++) {
+				this.offsets[i] = offsets.get(i);
+				length = Math.max(length, this.offsets[i] + this.values[i].length());
+			}
+		}
+		
+		/**
+		 * The amount of characters that need to be read to check the discriminator
+		 */
+		public int getLength() {
+			return length;
+		}
+		
+		public boolean matches(String value) {
+			for (int i = 0; i < offsets.length; i++) {
+				if (!value.startsWith(values[i], offsets[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Whether there is input that would match both discriminators, this is the case if the values agree wherever they overlap
+		 */
+		public boolean overlaps(Discriminator other) {
+			for (int i = 0; i < offsets.length; i++) {
+				for (int j = 0; j < other.offsets.length; j++) {
+					int start = Math.max(offsets[i], other.offsets[j]);
+					int end = Math.min(offsets[i] + values[i].length(), other.offsets[j] + other.values[j].length());
+					for (int position = start; position < end; position++) {
+						if (values[i].charAt(position - offsets[i]) != other.values[j].charAt(position - other.offsets[j])) {
+							return false;
+						}
+					}
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < offsets.length; i++) {
+				builder.append(i == 0 ? "" : ", ").append(offsets[i]).append("='").append(values[i]).append("'");
+			}
+			return "Discriminator[" + builder + "]";
+		}
+		
+		static Discriminator build(CompiledRecord record) {
+			List<Integer> offsets = new ArrayList<Integer>();
+			List<String> values = new ArrayList<String>();
+			// the record separator ends the record, a literal containing it can not be checked reliably
+			String recordSeparator = record.getSeparatorLength() == null ? record.getParseSeparator() : null;
+			if (record.getParseSeparator() != null && recordSeparator == null) {
+				return null;
+			}
+			int offset = 0;
+			for (CompiledFragment child : record.getChildren()) {
+				// a mandatory first record starts at the same position, we can reuse what it knows
+				if (child instanceof CompiledRecord) {
+					Discriminator discriminator = ((CompiledRecord) child).getDiscriminator();
+					if (offset == 0 && discriminator != null && ((CompiledRecord) child).getMinOccurs() > 0) {
+						for (int i = 0; i < discriminator.offsets.length; i++) {
+							if (recordSeparator == null || !discriminator.values[i].contains(recordSeparator)) {
+								offsets.add(discriminator.offsets[i]);
+								values.add(discriminator.values[i]);
+							}
+						}
+					}
+					break;
+				}
+				CompiledField field = (CompiledField) child;
+				// delimited by a fixed string
+				if (field.getParseSeparator() != null && field.getSeparatorLength() == null && field.getLength() == null && field.getMaxLength() == null) {
+					if (field.getFixed() == null) {
+						break;
+					}
+					// if the field can end the record, the separator is optional
+					String value = field.isCanEnd() ? field.getFixed() : field.getFixed() + field.getParseSeparator();
+					if (recordSeparator != null && value.contains(recordSeparator)) {
+						break;
+					}
+					offsets.add(offset);
+					values.add(value);
+					if (field.isCanEnd()) {
+						break;
+					}
+					offset += value.length();
+				}
+				// fixed length
+				else if (field.getParseSeparator() == null && field.getLength() != null) {
+					if (field.getFixed() != null) {
+						if (field.getFixed().length() != field.getLength() || (recordSeparator != null && field.getFixed().contains(recordSeparator))) {
+							break;
+						}
+						offsets.add(offset);
+						values.add(field.getFixed());
+					}
+					offset += field.getLength();
+				}
+				else {
+					break;
+				}
+			}
+			return offsets.isEmpty() ? null : new Discriminator(offsets, values);
+		}
+	}
+
+	public static class CompiledField extends CompiledFragment {
+		private String fixed, match, pad;
+		private FieldFormatter formatter;
+		private Pattern pattern;
+		private boolean leftAlign, canEnd;
+		private Map<QName, String> otherAttributes;
+		private Integer impliedDecimals;
+		private FieldDecoder decoder;
+		// the pad repeated to cover the length of the field (plus one pad) so padding can be copied instead of built
+		private char [] padRun;
+
+		CompiledField(Field field, ComplexType parentType) {
+			super(field);
+			this.fixed = field.getFixed();
+			this.match = field.getMatch();
+			this.pattern = match == null ? null : Pattern.compile(match);
+			this.pad = field.getPad() == null ? " " : field.getPad();
+			this.leftAlign = field.isLeftAlign();
+			this.canEnd = field.isCanEnd();
+			this.otherAttributes = field.getOtherAttributes() == null ? null : Collections.unmodifiableMap(field.getOtherAttributes());
+			if (field.getFormatter() != null) {
+				FieldFormatter.Scope scope;
+				try {
+					scope = FieldFormatter.toScope(field.getFormatterScope());
+				}
+				catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Invalid formatter scope '" + field.getFormatterScope() + "' for the field " + field + ", expected 'shared' or 'thread'", e);
+				}
+				this.formatter = new FieldFormatter(field.getFormatter(), this.otherAttributes, scope);
+			}
+			if (getLength() != null && !pad.isEmpty()) {
+				padRun = new char[getLength() + pad.length()];
+				for (int i = 0; i < padRun.length; i++) {
+					padRun[i] = pad.charAt(i % pad.length());
+				}
+			}
+			this.impliedDecimals = field.getImpliedDecimals();
+			// lists are not decoded, the value is added to the list as it always was
+			Element<?> element = getMap() == null || parentType == null ? null : parentType.get(getMap());
+			Value<Integer> maxOccurs = element == null ? null : element.getProperty(MaxOccursProperty.getInstance());
+			if (element != null && element.getType() instanceof SimpleType && (maxOccurs == null || maxOccurs.getValue() == 1)) {
+				this.decoder = FieldDecoder.newInstance(this, ((SimpleType<?>) element.getType()).getInstanceClass());
+			}
+		}
+
+		public String getFixed() {
+			return fixed;
+		}
+		public String getMatch() {
+			return match;
+		}
+		public Pattern getPattern() {
+			return pattern;
+		}
+		/**
+		 * The pad to use for fixed length fields, this defaults to a space
+		 */
+		public String getPad() {
+			return pad;
+		}
+		public boolean isLeftAlign() {
+			return leftAlign;
+		}
+		public boolean isCanEnd() {
+			return canEnd;
+		}
+		/**
+		 * The resolved formatter (if any), it caches the formatter instance and its property values
+		 */
+		public FieldFormatter getFormatter() {
+			return formatter;
+		}
+		public Map<QName, String> getOtherAttributes() {
+			return otherAttributes;
+		}
+		char [] getPadRun() {
+			return padRun;
+		}
+		/**
+		 * The amount of decimals that are implied in the value, e.g. "12345" with 2 implied decimals is 123.45
+		 */
+		public Integer getImpliedDecimals() {
+			return impliedDecimals;
+		}
+		/**
+		 * Decodes the value straight from the characters, this is null if the element it is mapped to has no decoder
+		 */
+		FieldDecoder getDecoder() {
+			return decoder;
+		}
+		public boolean matches(String value) {
+			return pattern == null || pattern.matcher(value).matches();
+		}
+		@Override
+		public boolean isIdentifiable() {
+			return match != null || fixed != null;
+		}
+	}
+}
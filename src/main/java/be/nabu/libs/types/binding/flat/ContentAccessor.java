@@ -0,0 +1,289 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlTransient;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.converter.api.Converter;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.WrappedComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+
+/**
+ * Gets and sets the value a fragment is mapped to. The path is resolved once: if it points to a single element and the content is a bean,
+ * the getter and setter are called through method handles instead of resolving the path in the content for every value.
+ * Anything that can not be accessed directly (nested paths, generic content, arrays,...) falls back to the path based access of the content.
+ */
+class ContentAccessor {
+
+	private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+	
+	private static Converter converter = ConverterFactory.getInstance().getConverter();
+	
+	private String path, name;
+	// the property of the last bean class that was accessed, in practice a fragment always sees the same class
+	private volatile BeanProperty property;
+	
+	ContentAccessor(String path) {
+		this.path = path;
+		String name = path.startsWith("@") ? path.substring(1) : path;
+		this.name = name.isEmpty() || name.contains("/") || name.contains("[") ? null : name;
+	}
+	
+	/**
+	 * The target can be content or a bean that was not wrapped
+	 */
+	Object get(Object target) {
+		Object bean = target instanceof BeanInstance ? ((BeanInstance<?>) target).getUnwrapped() : target;
+		if (name != null && bean != null && !(bean instanceof ComplexContent)) {
+			BeanProperty property = getProperty(bean, target instanceof ComplexContent ? (ComplexContent) target : null);
+			if (property.getter != null) {
+				try {
+					return property.getter.invokeExact(bean);
+				}
+				catch (Throwable e) {
+					throw rethrow(e);
+				}
+			}
+		}
+		return toContent(target).get(path);
+	}
+	
+	void set(ComplexContent content, Object value) {
+		if (!setDirectly(content, value)) {
+			content.set(path, value);
+		}
+	}
+	
+	private boolean setDirectly(ComplexContent content, Object value) {
+		if (name == null || !(content instanceof BeanInstance)) {
+			return false;
+		}
+		Object bean = ((BeanInstance<?>) content).getUnwrapped();
+		BeanProperty property = getProperty(bean, content);
+		if (property.setter == null) {
+			return false;
+		}
+		if (value instanceof WrappedComplexContent && !property.type.isInstance(value)) {
+			value = ((WrappedComplexContent<?>) value).getUnwrapped();
+		}
+		if (value != null && !property.boxed.isInstance(value)) {
+			value = converter.convert(value, property.boxed);
+			// let the content report the problem
+			if (value == null) {
+				return false;
+			}
+		}
+		else if (value == null && property.type.isPrimitive()) {
+			return false;
+		}
+		try {
+			property.setter.invokeExact(bean, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+		return true;
+	}
+	
+	/**
+	 * Appends the item to the list in a bean (creating the list if necessary), false is returned if the list can not be accessed directly
+	 */
+	@SuppressWarnings("unchecked")
+	boolean add(ComplexContent content, Object item) {
+		if (name == null || !(content instanceof BeanInstance)) {
+			return false;
+		}
+		Object bean = ((BeanInstance<?>) content).getUnwrapped();
+		BeanProperty property = getProperty(bean, content);
+		if (property.getter == null || property.setter == null || property.itemType == null) {
+			return false;
+		}
+		if (item instanceof WrappedComplexContent && !property.itemType.isInstance(item)) {
+			item = ((WrappedComplexContent<?>) item).getUnwrapped();
+		}
+		if (item != null && !property.itemType.isInstance(item)) {
+			return false;
+		}
+		try {
+			// the handle returns Object, the cast has to happen after the exact invocation
+			Object value = property.getter.invokeExact(bean);
+			List<Object> list = (List<Object>) value;
+			if (list == null) {
+				list = new ArrayList<Object>();
+				property.setter.invokeExact(bean, (Object) list);
+			}
+			list.add(item);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+		return true;
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static ComplexContent toContent(Object target) {
+		return target instanceof ComplexContent ? (ComplexContent) target : new BeanInstance(target);
+	}
+	
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		else if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new RuntimeException(e);
+	}
+	
+	private BeanProperty getProperty(Object bean, ComplexContent content) {
+		BeanProperty property = this.property;
+		if (property == null || property.beanClass != bean.getClass()) {
+			ComplexType type = (content == null ? toContent(bean) : content).getType();
+			property = new BeanProperty(bean.getClass(), name, type == null ? null : type.get(name));
+			this.property = property;
+		}
+		return property;
+	}
+	
+	/**
+	 * The accessors of a property in a bean class, they are null if they do not exist, are not accessible or do not match the element in the bean type.
+	 * The element name can differ from the property name (e.g. @XmlElement(name=...)), in that case another property may have the derived accessors.
+	 */
+	private static class BeanProperty {
+		private Class<?> beanClass, type, boxed;
+		// only set if the property is a list that we can create and append to
+		private Class<?> itemType;
+		private MethodHandle getter, setter;
+		
+		BeanProperty(Class<?> beanClass, String name, Element<?> element) {
+			this.beanClass = beanClass;
+			if (element == null) {
+				return;
+			}
+			String capitalized = name.substring(0, 1).toUpperCase() + name.substring(1);
+			Method get = getMethod(beanClass, "get" + capitalized);
+			if (get == null) {
+				get = getMethod(beanClass, "is" + capitalized);
+			}
+			if (get == null) {
+				return;
+			}
+			Class<?> type = get.getReturnType();
+			Method set = getMethod(beanClass, "set" + capitalized, type);
+			if (isRenamed(get, name) || isRenamed(set, name) || isRenamed(getField(get.getDeclaringClass(), name), name)) {
+				return;
+			}
+			Class<?> itemType = null;
+			if (List.class.isAssignableFrom(type) && type.isAssignableFrom(ArrayList.class)) {
+				Type generic = get.getGenericReturnType();
+				if (!(generic instanceof ParameterizedType)) {
+					itemType = Object.class;
+				}
+				else if (((ParameterizedType) generic).getActualTypeArguments()[0] instanceof Class) {
+					itemType = (Class<?>) ((ParameterizedType) generic).getActualTypeArguments()[0];
+				}
+			}
+			Value<Integer> maxOccurs = element.getProperty(MaxOccursProperty.getInstance());
+			boolean list = maxOccurs != null && maxOccurs.getValue() != 1;
+			// a list element must be backed by a list we can append to, a single element must be backed by a property of the same type
+			if (list ? itemType == null : List.class.isAssignableFrom(type) || type.isArray()) {
+				return;
+			}
+			if (element.getType() instanceof SimpleType) {
+				Class<?> expected = wrap(((SimpleType<?>) element.getType()).getInstanceClass());
+				if (!expected.equals(list ? itemType : wrap(type))) {
+					return;
+				}
+			}
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				getter = lookup.unreflect(get).asType(GETTER);
+				setter = set == null ? null : lookup.unreflect(set).asType(SETTER);
+			}
+			catch (IllegalAccessException e) {
+				getter = null;
+				setter = null;
+				return;
+			}
+			this.type = type;
+			this.boxed = wrap(type);
+			this.itemType = itemType;
+		}
+		
+		private static Class<?> wrap(Class<?> type) {
+			return MethodType.methodType(type).wrap().returnType();
+		}
+		
+		/**
+		 * Whether the annotations on the accessor or field map it to another element or exclude it from the type
+		 */
+		private static boolean isRenamed(AnnotatedElement annotated, String name) {
+			if (annotated == null) {
+				return false;
+			}
+			XmlElement element = annotated.getAnnotation(XmlElement.class);
+			XmlAttribute attribute = annotated.getAnnotation(XmlAttribute.class);
+			return annotated.isAnnotationPresent(XmlTransient.class)
+				|| (element != null && isRenamed(element.name(), name))
+				|| (attribute != null && isRenamed(attribute.name(), name));
+		}
+		
+		private static boolean isRenamed(String annotatedName, String name) {
+			return !annotatedName.isEmpty() && !annotatedName.equals("##default") && !annotatedName.equals(name);
+		}
+		
+		private static Field getField(Class<?> beanClass, String name) {
+			try {
+				return beanClass.getDeclaredField(name);
+			}
+			catch (NoSuchFieldException e) {
+				return null;
+			}
+		}
+		
+		private static Method getMethod(Class<?> beanClass, String name, Class<?>...parameters) {
+			try {
+				return beanClass.getMethod(name, parameters);
+			}
+			catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	}
+}
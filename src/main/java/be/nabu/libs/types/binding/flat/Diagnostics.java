@@ -0,0 +1,169 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledRecord;
+import be.nabu.libs.validator.api.ValidationMessage;
+import be.nabu.libs.validator.api.ValidationMessage.Severity;
+
+/**
+ * Most problems that occur during a parse are failed trial matches that are perfectly normal, for example at the end of every list.
+ * Instead of building a message for each of them, only the problem, the position and the fragments involved are stored.
+ * They are rendered into validation messages when a parse fails or someone asks for them.
+ * Only the most recent problems are kept, older ones are overwritten.
+ */
+class Diagnostics {
+
+	enum Problem {
+		NOT_ENOUGH_ITERATIONS,
+		NOT_PARSED,
+		NO_SEPARATOR,
+		WRONG_FIXED_VALUE,
+		NO_MATCH,
+		TOO_SHORT,
+		NO_DISCRIMINATOR_MATCH
+	}
+
+	// diagnostics that are turned off have no state so they can be shared
+	static final Diagnostics NONE = new Diagnostics(DiagnosticsLevel.OFF, 0);
+
+	private DiagnosticsLevel level;
+	private Severity [] severities;
+	private Problem [] problems;
+	private long [] positions;
+	private Object [] subjects, details;
+	private int [] numbers;
+	// the index of the oldest entry and the amount of entries
+	private int start, size;
+
+	Diagnostics(DiagnosticsLevel level, int capacity) {
+		this.level = level;
+		if (level != DiagnosticsLevel.OFF) {
+			severities = new Severity[capacity];
+			problems = new Problem[capacity];
+			positions = new long[capacity];
+			subjects = new Object[capacity];
+			details = new Object[capacity];
+			numbers = new int[capacity];
+		}
+	}
+
+	/**
+	 * Whether these diagnostics can be cleared and reused for the given settings
+	 */
+	boolean isReusable(DiagnosticsLevel level, int capacity) {
+		return this.level == level && (severities == null || severities.length == capacity);
+	}
+
+	boolean isEnabled(Severity severity) {
+		return level == DiagnosticsLevel.FULL || (level == DiagnosticsLevel.ERRORS && severity == Severity.ERROR);
+	}
+
+	void add(Severity severity, Problem problem, long position, Object subject) {
+		add(severity, problem, position, subject, null, 0);
+	}
+
+	void add(Severity severity, Problem problem, long position, Object subject, Object detail) {
+		add(severity, problem, position, subject, detail, 0);
+	}
+
+	void add(Severity severity, Problem problem, long position, Object subject, Object detail, int number) {
+		if (!isEnabled(severity) || severities.length == 0) {
+			return;
+		}
+		int index;
+		if (size < severities.length) {
+			index = (start + size++) % severities.length;
+		}
+		// overwrite the oldest
+		else {
+			index = start;
+			start = (start + 1) % severities.length;
+		}
+		severities[index] = severity;
+		problems[index] = problem;
+		positions[index] = position;
+		subjects[index] = subject;
+		details[index] = detail;
+		numbers[index] = number;
+	}
+
+	void clear() {
+		if (size > 0) {
+			for (int i = 0; i < size; i++) {
+				int index = (start + i) % severities.length;
+				subjects[index] = null;
+				details[index] = null;
+			}
+			start = 0;
+			size = 0;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	List<ValidationMessage> getMessages() {
+		List<ValidationMessage> messages = new ArrayList<ValidationMessage>(size);
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % severities.length;
+			messages.add(new ValidationMessage(severities[index], render(index)));
+		}
+		return messages;
+	}
+
+	String format() {
+		StringBuilder builder = new StringBuilder();
+		for (ValidationMessage message : getMessages()) {
+			if (builder.length() > 0) {
+				builder.append(",\n\t");
+			}
+			builder.append("[" + message.getSeverity() + ":" + message.getCode() + "] " + message.getMessage());
+		}
+		return builder.toString();
+	}
+
+	private String render(int index) {
+		Object subject = subjects[index];
+		Object detail = details[index];
+		int position = (int) positions[index];
+		switch (problems[index]) {
+			case NOT_ENOUGH_ITERATIONS:
+				CompiledRecord record = (CompiledRecord) subject;
+				return "Parsing " + record.getMap() + " failed after: " + numbers[index] + " of [" + record.getMinOccurs() + ", " + record.getMaxOccurs() + "] iterations at " + position;
+			case NOT_PARSED:
+				return "Could not parse '" + subject + "' in: " + detail + " at " + position;
+			case NO_SEPARATOR:
+				return "The field '" + subject + "' is delimited with '" + ((CompiledField) subject).getFragment().getParseSeparator() + "' but no separator was found and this field is not optional at " + position;
+			case WRONG_FIXED_VALUE:
+				return "The field '" + subject + "' does not have the correct fixed value, expecting '" + ((CompiledField) subject).getFixed() + "', received '" + detail + "' at " + position;
+			case NO_MATCH:
+				return "The field '" + subject + "' does not match the given regex, expecting match for '" + ((CompiledField) subject).getMatch() + "', received '" + detail + "' at " + position;
+			case TOO_SHORT:
+				return "The field '" + subject + "' does not have enough characters:" + ((String) detail).length() + " < " + ((CompiledField) subject).getMinLength() + " at " + position;
+			case NO_DISCRIMINATOR_MATCH:
+				return "The record '" + subject + "' does not match " + detail + " at " + position;
+		}
+		return problems[index] + " at " + position;
+	}
+}
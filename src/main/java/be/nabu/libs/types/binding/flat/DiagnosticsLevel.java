@@ -0,0 +1,36 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+/**
+ * The amount of diagnostics that is collected while parsing.
+ */
+public enum DiagnosticsLevel {
+	/**
+	 * Nothing is collected, a failed parse only reports where it failed
+	 */
+	OFF,
+	/**
+	 * Only errors are collected, warnings about optional records that were not found are ignored
+	 */
+	ERRORS,
+	/**
+	 * Everything is collected
+	 */
+	FULL
+}
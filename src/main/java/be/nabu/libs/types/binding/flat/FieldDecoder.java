@@ -0,0 +1,406 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.xml.namespace.QName;
+
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+
+/**
+ * Decodes the value of a field straight from the characters into the type of the element it is mapped to, without creating a string first.
+ * A decoder only accepts the plain formats it knows, for anything else it returns null and the value goes through the regular conversion (or formatter) so the result is always the same.
+ */
+abstract class FieldDecoder {
+
+	// the date formatter we can decode for, as long as it only has a format
+	static final String DATE_FORMATTER = "be.nabu.libs.types.simple.Date";
+	
+	// the maximum amount of digits that always fit in a long
+	private static final int MAX_LONG_DIGITS = 18;
+	// a double with at most this many digits and a power of ten up to 10^22 is exact, so a single division is correctly rounded
+	private static final int MAX_EXACT_DIGITS = 15;
+	private static final double [] POWERS = new double[23];
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+	}
+	
+	/**
+	 * Returns the decoded value or null if the characters are not in the plain format of the decoder
+	 */
+	abstract Object decode(char [] characters, int offset, int length);
+	
+	/**
+	 * Chooses a decoder based on the type of the element the field is mapped to, null is returned if there is none for the type
+	 */
+	static FieldDecoder newInstance(CompiledField field, Class<?> instanceClass) {
+		if (field.getMap() == null || instanceClass == null) {
+			return null;
+		}
+		if (field.getFormatter() != null) {
+			Map<QName, String> attributes = field.getOtherAttributes();
+			if (DATE_FORMATTER.equals(field.getFormatter().getFormatter()) && Date.class.equals(instanceClass) && attributes != null && attributes.size() == 1) {
+				String format = attributes.get(new QName("format"));
+				DateDecoder decoder = format == null ? null : DateDecoder.compile(format);
+				return decoder == null ? null : decoder.calibrate(field.getFormatter(), format);
+			}
+			return null;
+		}
+		int implied = field.getImpliedDecimals() == null ? 0 : field.getImpliedDecimals();
+		if (BigDecimal.class.equals(instanceClass)) {
+			return new DecimalDecoder(implied);
+		}
+		else if (Double.class.equals(instanceClass) || double.class.equals(instanceClass)) {
+			return new DoubleDecoder(implied);
+		}
+		// implied decimals on other types go through the decimal conversion
+		else if (implied > 0) {
+			return null;
+		}
+		else if (Integer.class.equals(instanceClass) || int.class.equals(instanceClass)) {
+			return new IntegerDecoder();
+		}
+		else if (Long.class.equals(instanceClass) || long.class.equals(instanceClass)) {
+			return new LongDecoder();
+		}
+		return null;
+	}
+	
+	/**
+	 * Parses an optionally signed number with an optional decimal point into the unscaled value and scale.
+	 * The result is false if the format is not plain or there are too many digits to fit in a long.
+	 */
+	private static boolean parse(char [] characters, int offset, int length, Number number) {
+		int end = offset + length;
+		int position = offset;
+		boolean negative = false;
+		if (position < end && (characters[position] == '-' || characters[position] == '+')) {
+			negative = characters[position] == '-';
+			position++;
+		}
+		long unscaled = 0;
+		int digits = 0, scale = -1;
+		boolean found = false;
+		for (; position < end; position++) {
+			char character = characters[position];
+			if (character >= '0' && character <= '9') {
+				found = true;
+				// leading zeros don't count
+				if (digits > 0 || character != '0') {
+					digits++;
+				}
+				if (digits > MAX_LONG_DIGITS) {
+					return false;
+				}
+				unscaled = unscaled * 10 + (character - '0');
+				if (scale >= 0) {
+					scale++;
+				}
+			}
+			else if (character == '.' && scale < 0) {
+				scale = 0;
+			}
+			else {
+				return false;
+			}
+		}
+		// there has to be at least one digit and a decimal point has to be followed by one
+		if (!found || scale == 0) {
+			return false;
+		}
+		number.unscaled = negative ? -unscaled : unscaled;
+		number.negative = negative;
+		number.digits = digits;
+		number.scale = Math.max(0, scale);
+		return true;
+	}
+	
+	/**
+	 * The parsed parts of a number, one instance is reused per thread to avoid allocating
+	 */
+	private static class Number {
+		private long unscaled;
+		private boolean negative;
+		private int digits, scale;
+	}
+	
+	private static final ThreadLocal<Number> numbers = new ThreadLocal<Number>() {
+		@Override
+		protected Number initialValue() {
+			return new Number();
+		}
+	};
+	
+	static class IntegerDecoder extends FieldDecoder {
+		@Override
+		Object decode(char [] characters, int offset, int length) {
+			Number number = numbers.get();
+			if (!parse(characters, offset, length, number) || number.scale > 0 || number.unscaled > Integer.MAX_VALUE || number.unscaled < Integer.MIN_VALUE) {
+				return null;
+			}
+			return Integer.valueOf((int) number.unscaled);
+		}
+	}
+	
+	static class LongDecoder extends FieldDecoder {
+		@Override
+		Object decode(char [] characters, int offset, int length) {
+			Number number = numbers.get();
+			if (!parse(characters, offset, length, number) || number.scale > 0) {
+				return null;
+			}
+			return Long.valueOf(number.unscaled);
+		}
+	}
+	
+	/**
+	 * Implied decimals are added to the scale, "12345" with 2 implied decimals is 123.45
+	 */
+	static class DecimalDecoder extends FieldDecoder {
+		private int implied;
+		
+		DecimalDecoder(int implied) {
+			this.implied = implied;
+		}
+		
+		@Override
+		Object decode(char [] characters, int offset, int length) {
+			Number number = numbers.get();
+			if (!parse(characters, offset, length, number)) {
+				return null;
+			}
+			return BigDecimal.valueOf(number.unscaled, number.scale + implied);
+		}
+	}
+	
+	static class DoubleDecoder extends FieldDecoder {
+		private int implied;
+		
+		DoubleDecoder(int implied) {
+			this.implied = implied;
+		}
+		
+		@Override
+		Object decode(char [] characters, int offset, int length) {
+			Number number = numbers.get();
+			if (!parse(characters, offset, length, number) || number.digits > MAX_EXACT_DIGITS || number.scale + implied >= POWERS.length) {
+				return null;
+			}
+			int scale = number.scale + implied;
+			double value = Math.abs(number.unscaled) / POWERS[scale];
+			return Double.valueOf(number.negative ? -value : value);
+		}
+	}
+	
+	/**
+	 * Decodes date patterns that only consist of fixed width numeric parts (yyyy, MM, dd, HH, mm, ss, SSS) and literals, e.g. yyyyMMdd or yyyy-MM-dd'T'HH:mm:ss.
+	 * The date is calculated with a calendar in the time zone of the formatter, like a lenient date format would, but values that are out of range are left to the formatter.
+	 */
+	static class DateDecoder extends FieldDecoder {
+		
+		// 2001-01-15 12:45:30.123 and 2001-07-15 12:45:30.123 UTC, one in winter and one in summer time
+		private static final long [] SAMPLES = new long [] { 979562730123l, 995201130123l };
+		
+		// the calendar field of each part, a literal part has field -1
+		private int [] fields, offsets, lengths;
+		private String literals;
+		private int length;
+		private ThreadLocal<Calendar> calendars;
+		
+		private DateDecoder(List<int[]> parts, String literals, int length) {
+			this.fields = new int[parts.size()];
+			this.offsets = new int[parts.size()];
+			this.lengths = new int[parts.size()];
+			for (int i = 0; i < parts.size(); i++) {
+				fields[i] = parts.get(i)[0];
+				offsets[i] = parts.get(i)[1];
+				lengths[i] = parts.get(i)[2];
+			}
+			this.literals = literals;
+			this.length = length;
+			this.calendars = newCalendars(TimeZone.getDefault());
+		}
+		
+		private DateDecoder(DateDecoder decoder, TimeZone timezone) {
+			this.fields = decoder.fields;
+			this.offsets = decoder.offsets;
+			this.lengths = decoder.lengths;
+			this.literals = decoder.literals;
+			this.length = decoder.length;
+			this.calendars = newCalendars(timezone);
+		}
+		
+		private static ThreadLocal<Calendar> newCalendars(final TimeZone timezone) {
+			return new ThreadLocal<Calendar>() {
+				@Override
+				protected Calendar initialValue() {
+					return new GregorianCalendar(timezone);
+				}
+			};
+		}
+		
+		/**
+		 * Returns a decoder in the time zone the formatter uses when none is configured: the default time zone or UTC.
+		 * We check which one gives the same result as the formatter for a date in winter and in summer, if neither does, null is returned and the formatter parses every value.
+		 */
+		DateDecoder calibrate(FieldFormatter formatter, String format) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+			List<String> samples = new ArrayList<String>();
+			for (long sample : SAMPLES) {
+				samples.add(dateFormat.format(new Date(sample)));
+			}
+			for (TimeZone timezone : new TimeZone [] { TimeZone.getDefault(), TimeZone.getTimeZone("UTC") }) {
+				DateDecoder decoder = new DateDecoder(this, timezone);
+				if (decoder.matches(formatter, samples)) {
+					return decoder;
+				}
+			}
+			return null;
+		}
+		
+		private boolean matches(FieldFormatter formatter, List<String> samples) {
+			for (String sample : samples) {
+				try {
+					Object expected = formatter.unmarshal(sample);
+					if (expected == null || !expected.equals(decode(sample.toCharArray(), 0, sample.length()))) {
+						return false;
+					}
+				}
+				catch (ParseException e) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Compiles the format, null is returned if it contains anything we can not decode
+		 */
+		static DateDecoder compile(String format) {
+			List<int[]> parts = new ArrayList<int[]>();
+			// the expected characters, digits are marked with a null character
+			StringBuilder literals = new StringBuilder();
+			boolean year = false, month = false, day = false;
+			for (int i = 0; i < format.length();) {
+				char character = format.charAt(i);
+				int end = i;
+				while (end < format.length() && format.charAt(end) == character) {
+					end++;
+				}
+				int amount = end - i;
+				int field;
+				switch (character) {
+					case 'y': field = Calendar.YEAR; year = amount == 4; break;
+					case 'M': field = Calendar.MONTH; month = amount == 2; break;
+					case 'd': field = Calendar.DAY_OF_MONTH; day = amount == 2; break;
+					case 'H': field = Calendar.HOUR_OF_DAY; break;
+					case 'm': field = Calendar.MINUTE; break;
+					case 's': field = Calendar.SECOND; break;
+					case 'S': field = Calendar.MILLISECOND; break;
+					default: field = -1;
+				}
+				if (field >= 0) {
+					if (amount != (field == Calendar.YEAR ? 4 : (field == Calendar.MILLISECOND ? 3 : 2))) {
+						return null;
+					}
+					parts.add(new int[] { field, literals.length(), amount });
+					for (int j = 0; j < amount; j++) {
+						literals.append('\0');
+					}
+					i = end;
+				}
+				else if (character == '\'') {
+					int close = format.indexOf('\'', i + 1);
+					// we don't support escaped quotes
+					if (close <= i + 1) {
+						return null;
+					}
+					literals.append(format, i + 1, close);
+					i = close + 1;
+				}
+				else if (Character.isLetter(character)) {
+					return null;
+				}
+				else {
+					literals.append(character);
+					i++;
+				}
+			}
+			return year && month && day ? new DateDecoder(parts, literals.toString(), literals.length()) : null;
+		}
+		
+		@Override
+		Object decode(char [] characters, int offset, int length) {
+			if (length != this.length) {
+				return null;
+			}
+			for (int i = 0; i < length; i++) {
+				char expected = literals.charAt(i);
+				char character = characters[offset + i];
+				if (expected == '\0' ? character < '0' || character > '9' : character != expected) {
+					return null;
+				}
+			}
+			int year = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0, millisecond = 0;
+			for (int i = 0; i < fields.length; i++) {
+				int value = 0;
+				for (int j = 0; j < lengths[i]; j++) {
+					value = value * 10 + characters[offset + offsets[i] + j] - '0';
+				}
+				switch (fields[i]) {
+					case Calendar.YEAR: year = value; break;
+					case Calendar.MONTH: month = value; break;
+					case Calendar.DAY_OF_MONTH: day = value; break;
+					case Calendar.HOUR_OF_DAY: hour = value; break;
+					case Calendar.MINUTE: minute = value; break;
+					case Calendar.SECOND: second = value; break;
+					default: millisecond = value;
+				}
+			}
+			if (year < 1 || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month) || hour > 23 || minute > 59 || second > 59) {
+				return null;
+			}
+			Calendar calendar = calendars.get();
+			calendar.clear();
+			calendar.set(year, month - 1, day, hour, minute, second);
+			calendar.set(Calendar.MILLISECOND, millisecond);
+			return calendar.getTime();
+		}
+		
+		private static int getDaysInMonth(int year, int month) {
+			switch (month) {
+				case 2: return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+				case 4: case 6: case 9: case 11: return 30;
+				default: return 31;
+			}
+		}
+	}
+}
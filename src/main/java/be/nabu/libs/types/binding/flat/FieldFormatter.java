@@ -0,0 +1,220 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.annotation.adapters.XmlAdapter;
+import javax.xml.namespace.QName;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.converter.api.Converter;
+import be.nabu.libs.property.api.Property;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.MarshalException;
+import be.nabu.libs.types.api.Marshallable;
+import be.nabu.libs.types.api.Unmarshallable;
+import be.nabu.libs.types.base.ValueImpl;
+
+/**
+ * The formatter of a field is resolved once: the class is loaded once, the property values are converted once and the instance is reused according to the scope.
+ * The scope is set on the field with the "formatterScope" attribute:
+ * 		- shared: a single instance is used for all parses, only use this for threadsafe formatters
+ * 		- thread (default): each thread gets its own instance
+ * The class is loaded with the context class loader of the calling thread, if a thread with another class loader uses the formatter, the class is resolved again for that loader.
+ * A thread keeps its instance until it calls {@link #release()}, threads in a long lived pool that parse with bindings from a redeployable class loader should release it.
+ */
+public class FieldFormatter {
+
+	public enum Scope {
+		SHARED,
+		THREAD
+	}
+
+	private static Converter converter = ConverterFactory.getInstance().getConverter();
+
+	private String formatter;
+	private Map<QName, String> attributes;
+	private Scope scope;
+
+	// the class, shared instance and converted values as resolved for the last class loader
+	private volatile Resolved resolved;
+	private ThreadLocal<Object> threadInstances = new ThreadLocal<Object>();
+
+	public FieldFormatter(String formatter, Map<QName, String> attributes, Scope scope) {
+		this.formatter = formatter;
+		this.attributes = attributes;
+		this.scope = scope == null ? Scope.THREAD : scope;
+	}
+
+	public static Scope toScope(String scope) {
+		return scope == null ? null : Scope.valueOf(scope.trim().toUpperCase());
+	}
+
+	public String getFormatter() {
+		return formatter;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	private Resolved getResolved() throws ClassNotFoundException {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null) {
+			loader = FieldFormatter.class.getClassLoader();
+		}
+		Resolved resolved = this.resolved;
+		if (resolved == null || resolved.loader != loader) {
+			resolved = new Resolved(loader, loader.loadClass(formatter));
+			this.resolved = resolved;
+		}
+		return resolved;
+	}
+
+	public Object getInstance() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		return getInstance(getResolved());
+	}
+
+	private Object getInstance(Resolved resolved) throws InstantiationException, IllegalAccessException {
+		if (scope == Scope.SHARED) {
+			if (resolved.sharedInstance == null) {
+				synchronized(resolved) {
+					if (resolved.sharedInstance == null) {
+						resolved.sharedInstance = resolved.formatterClass.newInstance();
+					}
+				}
+			}
+			return resolved.sharedInstance;
+		}
+		else {
+			Object instance = threadInstances.get();
+			if (instance == null || instance.getClass() != resolved.formatterClass) {
+				instance = resolved.formatterClass.newInstance();
+				threadInstances.set(instance);
+			}
+			return instance;
+		}
+	}
+
+	/**
+	 * Removes the instance of the current thread, the next call on this thread creates a new one
+	 */
+	public void release() {
+		threadInstances.remove();
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Value<?> [] toValues(Iterable<Property<?>> properties) {
+		List<Value<?>> values = new ArrayList<Value<?>>();
+		for (Property<?> property : properties) {
+			QName qname = new QName(property.getName());
+			if (attributes != null && attributes.containsKey(qname)) {
+				values.add(new ValueImpl(property, converter.convert(attributes.get(qname), property.getValueClass())));
+			}
+		}
+		return values.toArray(new Value[0]);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Object unmarshal(String value) throws ParseException {
+		try {
+			Resolved resolved = getResolved();
+			Object formatterInstance = getInstance(resolved);
+			if (formatterInstance instanceof Unmarshallable) {
+				Unmarshallable<?> unmarshallable = (Unmarshallable<?>) formatterInstance;
+				if (resolved.unmarshalValues == null) {
+					resolved.unmarshalValues = toValues(unmarshallable.getSupportedProperties());
+				}
+				return unmarshallable.unmarshal(value, resolved.unmarshalValues);
+			}
+			else if (formatterInstance instanceof XmlAdapter) {
+				XmlAdapter adapter = (XmlAdapter) formatterInstance;
+				try {
+					return adapter.unmarshal(value);
+				}
+				catch (Exception e) {
+					throw new ParseException("The formatter " + formatter + " failed to unmarshal the value: " + e.getMessage(), 0);
+				}
+			}
+			else {
+				throw new ParseException("Unknown unmarshaller: " + formatter, 0);
+			}
+		}
+		catch (InstantiationException e) {
+			throw new ParseException("Can not instantiate formatter " + formatter, 0);
+		}
+		catch (IllegalAccessException e) {
+			throw new ParseException("Can not instantiate formatter " + formatter, 0);
+		}
+		catch (ClassNotFoundException e) {
+			throw new ParseException("Can not find formatter " + formatter, 0);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public String marshal(Object object) throws MarshalException {
+		try {
+			Resolved resolved = getResolved();
+			Object formatterInstance = getInstance(resolved);
+			if (formatterInstance instanceof Marshallable) {
+				Marshallable marshallable = (Marshallable<?>) formatterInstance;
+				if (resolved.marshalValues == null) {
+					resolved.marshalValues = toValues(marshallable.getSupportedProperties());
+				}
+				return marshallable.marshal(object, resolved.marshalValues);
+			}
+			else if (formatterInstance instanceof XmlAdapter) {
+				XmlAdapter adapter = (XmlAdapter) formatterInstance;
+				try {
+					return (String) adapter.marshal(object);
+				}
+				catch (Exception e) {
+					throw new MarshalException("The formatter " + formatter + " failed to unmarshal the value: " + e.getMessage(), e);
+				}
+			}
+			else {
+				throw new MarshalException("Unknown marshaller: " + formatter);
+			}
+		}
+		catch (InstantiationException e) {
+			throw new MarshalException("Can not instantiate formatter " + formatter, e);
+		}
+		catch (IllegalAccessException e) {
+			throw new MarshalException("Can not instantiate formatter " + formatter, e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new MarshalException("Can not find formatter " + formatter, e);
+		}
+	}
+
+	private static class Resolved {
+		private ClassLoader loader;
+		private Class<?> formatterClass;
+		private volatile Object sharedInstance;
+		private volatile Value<?> [] unmarshalValues, marshalValues;
+
+		Resolved(ClassLoader loader, Class<?> formatterClass) {
+			this.loader = loader;
+			this.formatterClass = formatterClass;
+		}
+	}
+}
@@ -17,22 +17,34 @@
 
 package be.nabu.libs.types.binding.flat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-
-import javax.xml.bind.annotation.adapters.XmlAdapter;
-import javax.xml.namespace.QName;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import be.nabu.libs.converter.ConverterFactory;
 import be.nabu.libs.converter.api.Converter;
-import be.nabu.libs.property.api.Property;
 import be.nabu.libs.property.api.Value;
+import be.nabu.libs.resources.api.FiniteResource;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.types.CollectionHandlerFactory;
 import be.nabu.libs.types.DefinedTypeResolverFactory;
@@ -40,49 +52,69 @@ import be.nabu.libs.types.api.CollectionHandler;
 import be.nabu.libs.types.api.CollectionHandlerProvider;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
 import be.nabu.libs.types.api.DefinedTypeResolver;
 import be.nabu.libs.types.api.Element;
 import be.nabu.libs.types.api.MarshalException;
-import be.nabu.libs.types.api.Marshallable;
-import be.nabu.libs.types.api.Unmarshallable;
-import be.nabu.libs.types.base.ValueImpl;
 import be.nabu.libs.types.binding.BaseConfigurableTypeBinding;
 import be.nabu.libs.types.binding.api.PartialUnmarshaller;
 import be.nabu.libs.types.binding.api.Window;
 import be.nabu.libs.types.binding.api.WindowedList;
-import be.nabu.libs.types.binding.flat.FlatBindingConfig.Field;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledFragment;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledRecord;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.Discriminator;
+import be.nabu.libs.types.binding.flat.Diagnostics.Problem;
 import be.nabu.libs.types.binding.flat.FlatBindingConfig.Fragment;
 import be.nabu.libs.types.binding.flat.FlatBindingConfig.Record;
-import be.nabu.libs.types.java.BeanInstance;
-import be.nabu.libs.types.properties.MaxOccursProperty;
-import be.nabu.libs.types.properties.MinOccursProperty;
 import be.nabu.libs.validator.api.ValidationMessage;
 import be.nabu.libs.validator.api.ValidationMessage.Severity;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.CharBuffer;
-import be.nabu.utils.io.api.CountingWritableContainer;
 import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.io.containers.CountingReadableContainerImpl;
 import be.nabu.utils.io.containers.EOFReadableContainer;
 import be.nabu.utils.io.containers.LimitedMarkableContainer;
 import be.nabu.utils.io.containers.chars.BackedDelimitedCharContainer;
 
 /**
- * This class is NOT threadsafe
+ * This class is threadsafe: all the state of a parse is kept in a parse context so a single instance can be shared by multiple threads
  */
 public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig> {
 
+	// the minimum amount of characters between two byte offset checkpoints for windowed lists
+	private static final long CHECKPOINT_INTERVAL = 65536;
+	// the amount of characters that are buffered before they are encoded and written
+	private static final int MARSHAL_BUFFER_SIZE = 65536;
+	// the read buffer is sized to the look ahead and the resource, within these limits
+	private static final int MIN_READ_BUFFER_SIZE = 4096;
+	private static final int MAX_READ_BUFFER_SIZE = 409600;
+	
 	private CollectionHandler collectionHandler = CollectionHandlerFactory.getInstance().getHandler();
 	private Converter converter = ConverterFactory.getInstance().getConverter();
 	
 	private Charset charset;
-	private ReadableResource resource;
-	private long lookAhead = 409600;
 	
 	private boolean scopeMessages = false;
-	private List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+	
+	private ExecutorService executorService;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int parallelBlockSize = 131072;
+	private int marshalChunkSize = 1000;
+	private int maxChunksInFlight = Runtime.getRuntime().availableProcessors() * 2;
+	private DiagnosticsLevel diagnosticsLevel = DiagnosticsLevel.FULL;
+	private int maxDiagnostics = 1000;
+	private ThreadLocal<Diagnostics> messages = new ThreadLocal<Diagnostics>();
+	private boolean pooled = true;
+	private ThreadLocal<ParseContext> contexts = new ThreadLocal<ParseContext>();
+	private FlatBindingListener listener;
+	private boolean profiling;
+	private boolean validateLayout;
+	
+	private volatile CompiledFlatBinding compiled;
+	
+	private DefinedTypeResolver definedTypeResolver;
 	
 	public FlatBinding(FlatBindingConfig config, Charset charset) {
 		this(DefinedTypeResolverFactory.getInstance().getResolver(), config, charset);
@@ -90,6 +122,7 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 	
 	public FlatBinding(DefinedTypeResolver definedTypeResolver, FlatBindingConfig config, Charset charset) {
 		super(definedTypeResolver, config);
+		this.definedTypeResolver = definedTypeResolver;
 		this.charset = charset;
 	}
 	
@@ -113,59 +146,241 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 		}
 		return new FlatBinding(clone, charset);
 	}
-
-	private String trailing;
+	
+	/**
+	 * Compiles the configuration against the given type, the compiled binding is cached for as long as the same type is used
+	 */
+	public CompiledFlatBinding compile(ComplexType type) {
+		CompiledFlatBinding compiled = this.compiled;
+		if (compiled == null || !type.equals(compiled.getType())) {
+			compiled = new CompiledFlatBinding(getConfig(), type);
+			if (validateLayout) {
+				new FlatBindingAnalyzer(getConfig(), compiled).check();
+			}
+			this.compiled = compiled;
+		}
+		return compiled;
+	}
 
 	@Override
 	protected ComplexContent unmarshal(ReadableResource resource, ComplexType type, Window[] windows, Value<?>... values) throws IOException, ParseException {
-		this.resource = resource;
-		ReadableContainer<ByteBuffer> bytes = resource.getReadable();
-		ReadableContainer<CharBuffer> chars = IOUtils.wrapReadable(bytes, charset);
-		LimitedMarkableContainer<CharBuffer> marked = new LimitedMarkableContainer<CharBuffer>(IOUtils.bufferReadable(chars, IOUtils.newCharBuffer(409600, true)), lookAhead);
-		
-		Record record = new Record();
-		record.setDescription("Binding Root");
-		if (getConfig().getRecord() != null) {
-			for (Fragment child : getConfig().getChildren()) {
-				if (child instanceof Record && getConfig().getRecord().equals(((Record) child).getName())) {
-					record.getChildren().add(child);
-					break;
-				}
-			}
+		ParseContext context = acquireContext(resource, true);
+		try {
+			return unmarshal(context, type.newInstance(), windows);
+		}
+		finally {
+			messages.set(context.getDiagnostics());
+			releaseContext(context);
+		}
+	}
+	
+	ComplexContent unmarshal(ParseContext context, ComplexContent newInstance, Window[] windows) throws IOException, ParseException {
+		ReadableContainer<CharBuffer> readable;
+		// windowed lists reload their records based on the character offset, keep track of where those are in the bytes
+		Checkpoints checkpoints = windows.length > 0 ? Checkpoints.newInstance(charset, CHECKPOINT_INTERVAL) : null;
+		context.setCheckpoints(checkpoints);
+		// a mapped file is decoded straight from memory, there is no need for an additional buffer
+		if (context.getResource() instanceof MappedFileResource) {
+			readable = ((MappedFileResource) context.getResource()).getCharacters(charset, checkpoints);
 		}
 		else {
-			record.setChildren(getConfig().getChildren());
+			ReadableContainer<ByteBuffer> bytes = context.getResource().getReadable();
+			// the decoder buffers the characters itself
+			readable = context.getDecoder(charset).reset(bytes, getReadBufferSize(context.getResource(), compile(newInstance.getType()).getLookAhead()), checkpoints);
 		}
+		return unmarshal(context, newInstance, windows, readable);
+	}
+	
+	private ComplexContent unmarshal(ParseContext context, ComplexContent newInstance, Window[] windows, ReadableContainer<CharBuffer> readable) throws IOException, ParseException {
+		ComplexType type = newInstance.getType();
+		CompiledFlatBinding compiledBinding = compile(type);
+		context.setLookAhead(compiledBinding.getLookAhead());
+		LimitedMarkableContainer<CharBuffer> marked = new LimitedMarkableContainer<CharBuffer>(readable, compiledBinding.getLookAhead());
+		CompiledRecord record = compiledBinding.getRoot();
 		marked.mark();
-		ComplexContent newInstance = type.newInstance();
-		EOFReadableContainer<CharBuffer> eof = new EOFReadableContainer<CharBuffer>(marked);
-		CountingReadableContainerImpl<CharBuffer> counting = new CountingReadableContainerImpl<CharBuffer>(eof);
-		String unmarshal = unmarshal(type.getName(), marked, eof, counting, record, newInstance, windows);
-		// nothing was parsed correctly
-		if (unmarshal == null) {
-			// everything is probably trailing, just remove it
-			trailing = null;
-			throw new ParseException("Could not parse anything: " + formatMessages(), 0);
+		FlatBindingListener listener = this.listener;
+		ParseStatistics statistics = listener == null ? null : new ParseStatistics(type.getName(), compiledBinding.getLookAhead());
+		context.setStatistics(statistics);
+		ReadableContainer<CharBuffer> source = marked;
+		if (statistics != null && profiling) {
+			CountingReadableContainerImpl<CharBuffer> reads = new CountingReadableContainerImpl<CharBuffer>(marked);
+			statistics.profile(reads);
+			source = reads;
 		}
-		else {
-			while (getConfig().getRepeat() != null && getConfig().getRepeat() && unmarshal != null && !eof.isEOF()) {
-				long alreadyRead = counting.getReadTotal() - unmarshal.length();
-				counting = new CountingReadableContainerImpl<CharBuffer>(eof);
-				counting.setReadTotal(alreadyRead);
-				marked.pushback(IOUtils.wrap(unmarshal));
-				unmarshal = unmarshal(type.getName(), marked, eof, counting, record, newInstance, windows);
-			}
-			trailing = unmarshal + toString(marked);
-			if (!trailing.isEmpty() && (getConfig().getAllowTrailing() == null || !getConfig().getAllowTrailing())) {
-				throw new ParseException("Trailing characters not allowed: " + trailing, 0);
+		EOFReadableContainer<CharBuffer> eof = new EOFReadableContainer<CharBuffer>(source);
+		CountingReadableContainerImpl<CharBuffer> counting = new CountingReadableContainerImpl<CharBuffer>(eof);
+		boolean successful = false;
+		try {
+			String unmarshal = unmarshal(context, type.getName(), marked, eof, counting, record, newInstance, windows);
+			// nothing was parsed correctly
+			if (unmarshal == null) {
+				throw new ParseException("Could not parse anything: " + context.formatMessages(), 0);
 			}
 			else {
-				if (getConfig().getTrailingMatch() != null && !trailing.isEmpty() && !trailing.matches(getConfig().getTrailingMatch())) {
-					throw new ParseException("The trailing section did not match the allowed regex '" + getConfig().getTrailingMatch() + "': " + trailing, 0);
+				while (getConfig().getRepeat() != null && getConfig().getRepeat() && unmarshal != null && !eof.isEOF()) {
+					long alreadyRead = counting.getReadTotal() - unmarshal.length();
+					counting = new CountingReadableContainerImpl<CharBuffer>(eof);
+					counting.setReadTotal(alreadyRead);
+					marked.pushback(IOUtils.wrap(unmarshal));
+					unmarshal = unmarshal(context, type.getName(), marked, eof, counting, record, newInstance, windows);
+				}
+				String trailing = unmarshal + context.toString(marked);
+				if (!trailing.isEmpty() && (getConfig().getAllowTrailing() == null || !getConfig().getAllowTrailing())) {
+					throw new ParseException("Trailing characters not allowed: " + trailing, 0);
 				}
-				return newInstance;
+				else {
+					if (getConfig().getTrailingMatch() != null && !trailing.isEmpty() && !trailing.matches(getConfig().getTrailingMatch())) {
+						throw new ParseException("The trailing section did not match the allowed regex '" + getConfig().getTrailingMatch() + "': " + trailing, 0);
+					}
+					successful = true;
+					return newInstance;
+				}
+			}
+		}
+		finally {
+			if (statistics != null) {
+				context.setStatistics(null);
+				statistics.finish(counting.getReadTotal(), successful);
+				listener.parsed(this, statistics);
+			}
+		}
+	}
+	
+	/**
+	 * Streams the records at the given path (relative to the root, e.g. "employees") one at a time, they are parsed in the background and not added to the root content.
+	 */
+	public FlatRecordReader stream(ReadableResource resource, String path) {
+		return stream(resource, getComplexType(), path);
+	}
+	
+	public FlatRecordReader stream(ReadableResource resource, ComplexType type, String path) {
+		return new FlatRecordReader(this, resource, type, path, 1024);
+	}
+	
+	/**
+	 * Parses a local file, the file is memory mapped and decoded without intermediate buffers
+	 */
+	public ComplexContent unmarshal(File file, Window...windows) throws IOException, ParseException {
+		return unmarshal(new MappedFileResource(file), getComplexType(), windows);
+	}
+	
+	/**
+	 * Parses a local file with a windowed list and stores the offsets of the records in the list in a sidecar index file.
+	 * When the same file is parsed again with the same binding and window, only the records before the list, the first window of records and whatever comes after the list are parsed.
+	 * The index is rebuilt automatically if the size, modification time or sampled hash of the file changes.
+	 * A window without records does not use an index, the list is parsed lazily in full anyway.
+	 */
+	public ComplexContent unmarshal(File file, File index, Window window) throws IOException, ParseException {
+		if (window.getSize() <= 0) {
+			return unmarshal(file, window);
+		}
+		ComplexType type = getComplexType();
+		long bindingHash = getBindingHash(type, window);
+		OffsetIndex offsetIndex = OffsetIndex.read(index, file, bindingHash, charset);
+		if (offsetIndex != null) {
+			ComplexContent content = restore(file, type, window, offsetIndex);
+			if (content != null) {
+				return content;
+			}
+		}
+		MappedFileResource resource = new MappedFileResource(file);
+		ParseContext context = newContext(resource);
+		OffsetIndex.Recorder recorder = new OffsetIndex.Recorder(window.getPath());
+		context.setRecorder(recorder);
+		ComplexContent content;
+		try {
+			content = unmarshal(context, type.newInstance(), new Window[] { window });
+		}
+		finally {
+			messages.set(context.getDiagnostics());
+		}
+		// if the list fits in the window, there is nothing to gain
+		if (recorder.getCount() > window.getSize() && context.getCheckpoints() != null) {
+			long [] offsets = recorder.getOffsets();
+			long end = offsets[offsets.length - 1];
+			long [] checkpoint = context.getCheckpoints().floor(end);
+			ReadableContainer<CharBuffer> chars = resource.getCharacters(charset, checkpoint[1]);
+			try {
+				IOUtils.copyChars(chars, IOUtils.newCharSink(end - checkpoint[0]));
+				new OffsetIndex(offsets, context.toString(chars), context.getCheckpoints()).write(index, file, bindingHash);
+			}
+			finally {
+				chars.close();
+			}
+		}
+		return content;
+	}
+	
+	/**
+	 * Parses the file up to and including the first window of records followed by the text after the list, the other offsets are restored from the index.
+	 * Returns null if the result does not match the index, the caller should do a full parse instead.
+	 */
+	private ComplexContent restore(File file, ComplexType type, Window window, OffsetIndex index) throws IOException {
+		long [] offsets = index.getOffsets();
+		MappedFileResource resource = new MappedFileResource(file);
+		ParseContext context = newContext(resource);
+		context.setCheckpoints(index.getCheckpoints());
+		OffsetIndex.Recorder recorder = new OffsetIndex.Recorder(window.getPath());
+		context.setRecorder(recorder);
+		ReadableContainer<CharBuffer> chars = resource.getCharacters(charset, 0);
+		try {
+			String head = context.toString(IOUtils.limitReadable(chars, offsets[window.getSize() - 1]));
+			ComplexContent content = unmarshal(context, type.newInstance(), new Window[] { window }, IOUtils.wrap(head + index.getTail()));
+			if (recorder.getList() == null || !Arrays.equals(recorder.getOffsets(), Arrays.copyOf(offsets, window.getSize()))) {
+				return null;
 			}
+			for (int i = window.getSize(); i < offsets.length; i++) {
+				recorder.getList().setOffset(i, offsets[i]);
+			}
+			return content;
+		}
+		catch (ParseException e) {
+			return null;
 		}
+		finally {
+			chars.close();
+			messages.set(context.getDiagnostics());
+		}
+	}
+	
+	private long getBindingHash(ComplexType type, Window window) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		getConfig().save(output);
+		CRC32 crc = new CRC32();
+		crc.update(output.toByteArray());
+		crc.update((type.getName() + ":" + charset.name() + ":" + window.getPath() + ":" + window.getSize() + ":" + window.getBatchSize()).getBytes("UTF-8"));
+		return crc.getValue();
+	}
+	
+	private ComplexType getComplexType() {
+		DefinedType type = definedTypeResolver.resolve(getConfig().getComplexType());
+		if (!(type instanceof ComplexType)) {
+			throw new IllegalArgumentException("The type " + getConfig().getComplexType() + " is not a complex type");
+		}
+		return (ComplexType) type;
+	}
+	
+	/**
+	 * The look ahead that is used for the configured type, it is derived from the lengths in the binding and the configured max look ahead
+	 */
+	public long getLookAhead() {
+		return compile(getComplexType()).getLookAhead();
+	}
+	
+	/**
+	 * The size of the read buffer (in characters) for the given resource, it is never larger than the look ahead or the resource itself (if the size is known)
+	 */
+	public int getReadBufferSize(ReadableResource resource) {
+		return getReadBufferSize(resource, getLookAhead());
+	}
+	
+	private int getReadBufferSize(ReadableResource resource, long lookAhead) {
+		long size = Math.min(lookAhead, MAX_READ_BUFFER_SIZE);
+		// a character takes up at least one byte
+		if (resource instanceof FiniteResource && ((FiniteResource) resource).getSize() >= 0) {
+			size = Math.min(size, ((FiniteResource) resource).getSize() + 1);
+		}
+		return (int) Math.max(MIN_READ_BUFFER_SIZE, size);
 	}
 	
 	public boolean isScopeMessages() {
@@ -176,8 +391,172 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 		this.scopeMessages = scopeMessages;
 	}
 
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/**
+	 * If an executor service is set, large lists of records that are separated by a fixed separator and have an identifying field are parsed in parallel.
+	 * The input is read in blocks which are split on the record separator, the records in a block are parsed on the executor and added in their original order.
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * The amount of threads we expect to be able to use in the executor, a block is split in a few tasks per thread
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelBlockSize() {
+		return parallelBlockSize;
+	}
+
+	/**
+	 * The amount of characters that are read at once for parallel parsing, it is capped at half the lookahead
+	 */
+	public void setParallelBlockSize(int parallelBlockSize) {
+		this.parallelBlockSize = parallelBlockSize;
+	}
+
+	public int getMarshalChunkSize() {
+		return marshalChunkSize;
+	}
+
+	/**
+	 * If an executor service is set, lists with more records than this are marshalled in chunks of this size in parallel
+	 */
+	public void setMarshalChunkSize(int marshalChunkSize) {
+		this.marshalChunkSize = marshalChunkSize;
+	}
+
+	public int getMaxChunksInFlight() {
+		return maxChunksInFlight;
+	}
+
+	/**
+	 * The maximum amount of marshalled chunks that are kept in memory waiting to be written
+	 */
+	public void setMaxChunksInFlight(int maxChunksInFlight) {
+		this.maxChunksInFlight = maxChunksInFlight;
+	}
+
+	/**
+	 * The messages of the last parse that was done by the current thread
+	 */
 	public List<ValidationMessage> getMessages() {
-		return messages;
+		Diagnostics diagnostics = messages.get();
+		return diagnostics == null ? new ArrayList<ValidationMessage>() : diagnostics.getMessages();
+	}
+	
+	public DiagnosticsLevel getDiagnosticsLevel() {
+		return diagnosticsLevel;
+	}
+
+	/**
+	 * Determines which problems are kept while parsing, they are only turned into messages when the parse fails or the messages are requested
+	 */
+	public void setDiagnosticsLevel(DiagnosticsLevel diagnosticsLevel) {
+		this.diagnosticsLevel = diagnosticsLevel;
+	}
+
+	public int getMaxDiagnostics() {
+		return maxDiagnostics;
+	}
+
+	/**
+	 * The maximum amount of problems that is kept per parse, only the most recent ones are kept
+	 */
+	public void setMaxDiagnostics(int maxDiagnostics) {
+		this.maxDiagnostics = maxDiagnostics;
+	}
+	
+	ParseContext newContext(ReadableResource resource) {
+		return new ParseContext(resource, new Diagnostics(diagnosticsLevel, maxDiagnostics));
+	}
+	
+	public boolean isPooled() {
+		return pooled;
+	}
+
+	/**
+	 * If pooled (the default), every thread keeps the parse context, its buffers and its decoder for the next parse. This avoids most of the setup of small messages.
+	 */
+	public void setPooled(boolean pooled) {
+		this.pooled = pooled;
+		if (!pooled) {
+			contexts = new ThreadLocal<ParseContext>();
+		}
+	}
+	
+	public FlatBindingListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * The listener receives the statistics of every parse, e.g. to expose them through JMX ({@link FlatBindingMetrics}) or JFR (FlatBindingEvents in the jfr module)
+	 */
+	public void setListener(FlatBindingListener listener) {
+		this.listener = listener;
+	}
+	
+	public boolean isValidateLayout() {
+		return validateLayout;
+	}
+
+	/**
+	 * When set, the binding is analyzed when it is compiled and rejected if its layout makes the parser read the same characters over and over, see {@link FlatBindingAnalyzer}
+	 */
+	public void setValidateLayout(boolean validateLayout) {
+		this.validateLayout = validateLayout;
+	}
+	
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	/**
+	 * When profiling, the characters that are read more than once (by failed trial parses or pushback) are attributed to the fragments that caused it.
+	 * The result is part of the statistics sent to the listener, the {@link FlatBindingProfiler} turns them into a report.
+	 */
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+	
+	/**
+	 * Takes the pooled context of the current thread (if any) and resets it for a new parse.
+	 * The context is removed from the pool while it is in use, a nested parse on the same thread (e.g. loading a window) simply gets a new context.
+	 */
+	ParseContext acquireContext(ReadableResource resource, boolean diagnostics) {
+		ParseContext context = pooled ? contexts.get() : null;
+		if (context == null) {
+			return diagnostics ? newContext(resource) : new ParseContext(resource);
+		}
+		contexts.remove();
+		if (!diagnostics) {
+			context.reset(resource, Diagnostics.NONE);
+		}
+		else if (context.getDiagnostics().isReusable(diagnosticsLevel, maxDiagnostics)) {
+			context.getDiagnostics().clear();
+			context.reset(resource, context.getDiagnostics());
+		}
+		else {
+			context.reset(resource, new Diagnostics(diagnosticsLevel, maxDiagnostics));
+		}
+		return context;
+	}
+	
+	void releaseContext(ParseContext context) {
+		if (pooled) {
+			context.release();
+			contexts.set(context);
+		}
 	}
 
 	/**
@@ -189,8 +568,23 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 	 * 		- if it's an empty string: do nothing, it was an exact match
 	 * 		- if it's null: do a reset(), nothing was matched 
 	 */
+	private String unmarshal(ParseContext context, String path, LimitedMarkableContainer<CharBuffer> marked, EOFReadableContainer<CharBuffer> eof, CountingReadableContainerImpl<CharBuffer> counting, CompiledFragment fragment, ComplexContent content, Window...windows) throws ParseException, IOException {
+		boolean bounded = fragment instanceof CompiledRecord && (fragment.getParseSeparator() != null || fragment.getLength() != null);
+		if (bounded) {
+			context.enterBounded();
+		}
+		try {
+			return unmarshalFragment(context, path, marked, eof, counting, fragment, content, windows);
+		}
+		finally {
+			if (bounded) {
+				context.exitBounded();
+			}
+		}
+	}
+	
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private String unmarshal(String path, LimitedMarkableContainer<CharBuffer> marked, EOFReadableContainer<CharBuffer> eof, CountingReadableContainerImpl<CharBuffer> counting, Fragment fragment, ComplexContent content, Window...windows) throws ParseException, IOException {
+	private String unmarshalFragment(ParseContext context, String path, LimitedMarkableContainer<CharBuffer> marked, EOFReadableContainer<CharBuffer> eof, CountingReadableContainerImpl<CharBuffer> counting, CompiledFragment fragment, ComplexContent content, Window...windows) throws ParseException, IOException {
 		// the delimited container (if any), it is used to keep track of whether or not the delimiter was found
 		BackedDelimitedCharContainer delimited = null;
 		
@@ -201,7 +595,7 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 		ReadableContainer<CharBuffer> readable = counting;
 		
 		if (fragment.getParseSeparator() != null) {
-			String separator = normalizeSeparator(fragment.getParseSeparator());
+			String separator = fragment.getParseSeparator();
 			// we need a maxlength to scan for
 			if (fragment.getMaxLength() != null) {
 				readable = IOUtils.limitReadable(readable, fragment.getMaxLength());
@@ -209,11 +603,11 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 			// limit in size & separator
 			if (fragment.getSeparatorLength() == null) {
 				Integer maxLength = fragment.getLength() == null ? fragment.getMaxLength() : fragment.getLength();
-				delimited = new BackedDelimitedCharContainer(readable, maxLength == null ? 4096 : maxLength + separator.length(), separator);
+				delimited = new BackedDelimitedCharContainer(readable, maxLength == null ? CompiledFlatBinding.DEFAULT_DELIMITED_BUFFER_SIZE : maxLength + separator.length(), separator);
 			}
 			else {
 				Integer maxLength = fragment.getLength() == null ? fragment.getMaxLength() : fragment.getLength();
-				delimited = new BackedDelimitedCharContainer(readable, maxLength == null ? 4096 : maxLength + fragment.getSeparatorLength(), separator, fragment.getSeparatorLength());
+				delimited = new BackedDelimitedCharContainer(readable, maxLength == null ? CompiledFlatBinding.DEFAULT_DELIMITED_BUFFER_SIZE : maxLength + fragment.getSeparatorLength(), separator, fragment.getSeparatorLength());
 			}
 			readable = delimited;
 		}
@@ -221,8 +615,14 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 		else if (fragment.getLength() != null) {
 			readable = IOUtils.limitReadable(readable, fragment.getLength());
 		}
+		if (fragment instanceof CompiledRecord && ((CompiledRecord) fragment).getSlicedLength() != null) {
+			return unmarshalSliced(context, (CompiledRecord) fragment, readable, delimited, counting, content);
+		}
+		else if (fragment instanceof CompiledRecord && ((CompiledRecord) fragment).isScannable()) {
+			return unmarshalScanned(context, (CompiledRecord) fragment, readable, delimited, counting, content);
+		}
 		String pushback = "";
-		if (fragment instanceof Record) {
+		if (fragment instanceof CompiledRecord) {
 			// need a correct offset to be able to skip later on
 			long alreadyRead = counting.getReadTotal();
 			long initialRead = alreadyRead;
@@ -231,47 +631,72 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 			// if we parse something successfully and the next one is unsuccessful, we need to throw an exception
 			// if the entire thing is unsuccessful, we return false
 			boolean hasParsedAnything = false;
-			record: for (Fragment child : ((Record) fragment).getChildren()) {
-				// always resolve a child record first
-				if (child instanceof Record) {
-					child = ((Record) child).resolve(getConfig().getChildren());
-				}
-				if (child instanceof Record && child.getMap() != null) {
-					Element<?> childElement = content.getType().get(child.getMap());
+			// if the record is not limited by a length, we can peek at the next characters to check the discriminator of child records
+			Peek peek = fragment.getParseSeparator() != null || fragment.getLength() == null ? new Peek() : null;
+			record: for (CompiledFragment child : ((CompiledRecord) fragment).getChildren()) {
+				if (child instanceof CompiledRecord && child.getMap() != null) {
+					CompiledRecord childRecord = (CompiledRecord) child;
+					Element<?> childElement = childRecord.getElement();
 					if (childElement == null) {
 						throw new ParseException("The element " + child.getMap() + " does not exist in " + path, (int) alreadyRead);
 					}
-					if (!(childElement.getType() instanceof ComplexType)) {
+					if (childRecord.getType() == null) {
 						throw new ParseException("The record points to a child that is not complex", (int) alreadyRead);
 					}
-					Value<Integer> minOccurs = childElement.getProperty(MinOccursProperty.getInstance());
-					int typeMinOccurs = minOccurs == null ? 1 : minOccurs.getValue();
-					Value<Integer> maxOccurs = childElement.getProperty(MaxOccursProperty.getInstance());
-					int typeMaxOccurs = maxOccurs == null ? 1 : maxOccurs.getValue();
 					int recordCounter = 0;
-					int maxRecordAmount = ((Record) child).getMaxOccurs() == null ? typeMaxOccurs : ((Record) child).getMaxOccurs();
-					int minRecordAmount = ((Record) child).getMinOccurs() == null ? typeMinOccurs : ((Record) child).getMinOccurs();
+					int maxRecordAmount = childRecord.getMaxOccurs();
+					int minRecordAmount = childRecord.getMinOccurs();
+					String childPath = path + "/" + childElement.getName();
+					// we can only read blocks if nothing limits what we can read, windowed lists need the offsets of the original parse so they are parsed sequentially
+					boolean parallel = executorService != null && childRecord.isParallelizable() && context.isUnbounded() && windows.length == 0;
 					while(maxRecordAmount == 0 || recordCounter < maxRecordAmount) {
 						if (eof.isEOF()) {
 							break record;
 						}
-						ComplexContent childContent = ((ComplexType) childElement.getType()).newInstance();
-						String childPath = path + "/" + childElement.getName();
+						if (parallel) {
+							Block block = unmarshalBlock(context, childRecord, childPath, alreadyRead, maxRecordAmount == 0 ? Integer.MAX_VALUE : maxRecordAmount - recordCounter, marked);
+							for (int i = 0; i < block.contents.size(); i++) {
+								setChild(context, content, childRecord, childPath, block.contents.get(i), i == 0 ? alreadyRead : block.offsets.get(i - 1), block.offsets.get(i), windows);
+							}
+							if (!block.contents.isEmpty()) {
+								recordCounter += block.contents.size();
+								alreadyRead = block.offsets.get(block.offsets.size() - 1);
+								counting.setReadTotal(alreadyRead);
+								if (scopeMessages) {
+									context.getDiagnostics().clear();
+								}
+								hasParsedAnything = true;
+								pushback = "";
+							}
+							// if a record in the block was not accepted, parse it sequentially, it may be the end of the list or an actual error
+							if (!block.complete) {
+								parallel = false;
+							}
+							continue;
+						}
+						ComplexContent childContent = childRecord.getType().newInstance();
+						long start = alreadyRead;
+						long attempt = context.getStatistics() == null ? 0 : context.getStatistics().attempt();
 						CountingReadableContainerImpl<CharBuffer> childCounting = new CountingReadableContainerImpl<CharBuffer>(readable, alreadyRead);
 						// the child is not a match
-						pushback = unmarshal(childPath, marked, eof, childCounting, child, childContent, windows);
+						pushback = isCandidate(context, childRecord, peek, alreadyRead, readable, delimited, marked)
+							? unmarshal(context, childPath, marked, eof, childCounting, child, childContent, windows)
+							: null;
 						// no match
 						if (pushback == null) {
+							if (context.getStatistics() != null) {
+								context.getStatistics().failed(childRecord, start, attempt);
+							}
 							if (recordCounter < minRecordAmount) {
 								// reset the parent counting correct
 								counting.setReadTotal(initialRead);
 								// if we have parsed something, this is considered invalid
 								if (hasParsedAnything) {
-									throw new ParseException("The record " + child.getMap() + " does not have enough iterations: " + recordCounter + "/" + minRecordAmount + ", " + formatMessages(), (int) alreadyRead);
+									throw new ParseException("The record " + child.getMap() + " does not have enough iterations: " + recordCounter + "/" + minRecordAmount + ", " + context.formatMessages(), (int) alreadyRead);
 								}
 								// otherwise it might just not be a match, have the parent reset
 								else {
-									messages.add(new ValidationMessage(Severity.WARNING, "Parsing " + child.getMap() + " failed after: " + recordCounter + " of [" + minRecordAmount + ", " + maxRecordAmount + "] iterations at " + (int) alreadyRead));
+									context.getDiagnostics().add(Severity.WARNING, Problem.NOT_ENOUGH_ITERATIONS, alreadyRead, childRecord, null, recordCounter);
 									return null;
 								}
 							}
@@ -281,6 +706,9 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 							// if this is the last, don't send back null to indicate failure
 							pushback = "";
 							marked.reset();
+							if (context.getStatistics() != null) {
+								context.getStatistics().reset(childRecord);
+							}
 							// reset the container to try the next fragment
 							// if we continue parsing, reset the delimited, it is in an unknown state
 							if (delimited != null) {
@@ -291,16 +719,22 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 						else {
 							// update the alreadyread, the child read has set this correctly
 							alreadyRead = childCounting.getReadTotal();
+							if (context.getStatistics() != null) {
+								context.getStatistics().matched(childRecord, alreadyRead - start);
+								context.getStatistics().pushback(childRecord, pushback.length());
+							}
 							// reset the parent so it's correct
 							counting.setReadTotal(alreadyRead);
 							
 							// clear any messages up till now
 							if (scopeMessages) {
-								messages.clear();
+								context.getDiagnostics().clear();
 							}
 							
 							hasParsedAnything = true;
 							recordCounter++;
+							// after a successful sequential parse, we can try parallel blocks again
+							parallel = executorService != null && childRecord.isParallelizable() && context.isUnbounded() && windows.length == 0;
 							marked.moveMarkAbsolute(alreadyRead);
 							// push it back to the delimited if it is there, that means it is NOT stored in the marked! hence retain the pushback, it might be necessary to send it to the parent call
 							if (delimited != null) {
@@ -311,67 +745,33 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 								pushback = "";
 							}
 						}
-						// if the type expects a list, it can be windowed
-						if (typeMaxOccurs != 1) {
-							// get the current value, see if there is a list already basically
-							// Note: this only works with integer indexed collections
-							Object currentObject = content.get(childElement.getName());
-							int index = 0;
-							if (currentObject != null) {
-								CollectionHandlerProvider provider = collectionHandler.getHandler(currentObject.getClass());
-								index = provider.getAsCollection(currentObject).size();
-							}
-							Window activeWindow = null;
-							for (Window window : windows) {
-								if (window.getPath().equals(childPath)) {
-									activeWindow = window;
-									break;
-								}
-							}
-							if (activeWindow != null) {
-								WindowedList list = null;
-								// if the current object is already a list but it is empty (e.g. default initialization), overwrite it with a windowed list
-								if (currentObject == null || (currentObject instanceof List && ((List) currentObject).isEmpty())) { 
-									list = new WindowedList(resource, activeWindow, new PartialFlatUnmarshaller((Record) child, (ComplexType) content.getType().get(childElement.getName()).getType(), activeWindow, windows));
-									content.set(childElement.getName(), list);
-								}
-								else if (currentObject instanceof WindowedList) {
-									list = (WindowedList) currentObject;
-								}
-								else {
-									throw new IllegalArgumentException("The collection already exists and is not windowed");
-								}
-								// always register the offset
-								list.setOffset(index, alreadyRead);
-								// only register the object if it is within the window size
-								if (index < activeWindow.getSize()) {
-									content.set(childElement.getName() + "[" + index + "]", childContent);
-								}
-							}
-							else {
-								// this reuses the internal collection handling
-								content.set(childElement.getName() + "[" + index + "]", childContent);
-							}
-						}
-						else {
-							content.set(child.getMap(), childContent);
-						}
+						setChild(context, content, childRecord, childPath, childContent, start, alreadyRead, windows);
 					}
 				}
 				// it's either a record we don't need to map or a field
 				else {
+					long start = alreadyRead;
+					long attempt = context.getStatistics() == null ? 0 : context.getStatistics().attempt();
 					CountingReadableContainerImpl<CharBuffer> childCounting = new CountingReadableContainerImpl<CharBuffer>(readable, alreadyRead);
-					pushback = unmarshal(path, marked, eof, childCounting, child, content, windows);
+					pushback = !(child instanceof CompiledRecord) || isCandidate(context, (CompiledRecord) child, peek, alreadyRead, readable, delimited, marked)
+						? unmarshal(context, path, marked, eof, childCounting, child, content, windows)
+						: null;
 					if (pushback == null) {
+						if (context.getStatistics() != null && child instanceof CompiledRecord) {
+							context.getStatistics().failed((CompiledRecord) child, start, attempt);
+						}
 						counting.setReadTotal(alreadyRead);
-						int minRecordAmount = !(child instanceof Record) || ((Record) child).getMinOccurs() == null ? 1 : ((Record) child).getMinOccurs();
+						int minRecordAmount = child instanceof CompiledRecord ? ((CompiledRecord) child).getMinOccurs() : 1;
 						if (minRecordAmount != 0) {
-							messages.add(new ValidationMessage(Severity.ERROR, "Could not parse '" + child + "' in: " + fragment + " at " + (int) alreadyRead));
+							context.getDiagnostics().add(Severity.ERROR, Problem.NOT_PARSED, alreadyRead, child, fragment);
 							return null;
 						}
-						messages.add(new ValidationMessage(Severity.WARNING, "Could not parse '" + child + "' in: " + fragment + " at " + (int) alreadyRead));
+						context.getDiagnostics().add(Severity.WARNING, Problem.NOT_PARSED, alreadyRead, child, fragment);
 						pushback = "";
 						marked.reset();
+						if (context.getStatistics() != null) {
+							context.getStatistics().reset(child instanceof CompiledRecord ? (CompiledRecord) child : (CompiledRecord) fragment);
+						}
 						// reset the container to try the next fragment
 						// if we continue parsing, reset the delimited, it is in an unknown state
 						if (delimited != null) {
@@ -379,17 +779,23 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 						}
 					}
 					else {
-						if (child instanceof Field) {
+						if (child instanceof CompiledField) {
 							childCounting.add(-pushback.length());
 						}
 						hasParsedAnything = true;
 						// update the alreadyread;
 						alreadyRead = childCounting.getReadTotal();
-						if (!(child instanceof Field)) {
+						if (context.getStatistics() != null) {
+							if (child instanceof CompiledRecord) {
+								context.getStatistics().matched((CompiledRecord) child, alreadyRead - start);
+							}
+							context.getStatistics().pushback(child, pushback.length());
+						}
+						if (!(child instanceof CompiledField)) {
 							marked.moveMarkAbsolute(alreadyRead);
 							// clear any messages up till now
 							if (scopeMessages) {
-								messages.clear();
+								context.getDiagnostics().clear();
 							}
 						}
 						// reset the parent so it's correct
@@ -404,110 +810,24 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 					}
 				}
 			}
-			if (delimited != null) {
-				// if we get here, it is possible the record was not read to the fullest (e.g. fixed length)
-				String remainder = toString(readable);
-				if (!remainder.isEmpty()) {
-					throw new ParseException("There are " + remainder.length() + " dangling characters at the end of the " + fragment + ": '" + remainder + "'", (int) alreadyRead);
-				}
-				long hasActuallyRead = alreadyRead - initialRead;
-				// check any length set on the entire fragment
-				if (fragment.getLength() != null) {
-					long shouldHaveRead = fragment.getLength();
-					if (shouldHaveRead != hasActuallyRead) {
-						throw new ParseException("There were not enough characters for the " + fragment + ": " + hasActuallyRead + " != " + shouldHaveRead, (int) alreadyRead);
-					}
-				}
-				else if (fragment.getMinLength() != null) {
-					if (hasActuallyRead < fragment.getMinLength()) {
-						throw new ParseException("There were not enough characters for the " + fragment + ": " + hasActuallyRead + " < " + fragment.getMinLength(), (int) alreadyRead);
-					}
-				}
-			}
-			// make sure the delimited is counted into the offsets
-			if (delimited != null && delimited.getMatchedDelimiter() != null) {
-				counting.add(delimited.getMatchedDelimiter().length());
-			}
+			endRecord(context, fragment, readable, delimited, counting, initialRead, alreadyRead);
 		}
 		// for a field, parse it and set it
 		else {
-			Field field = (Field) fragment;
-			String value = toString(readable);
+			CompiledField field = (CompiledField) fragment;
+			String value = context.toString(readable);
 			if (delimited != null && !delimited.isDelimiterFound() && !field.isCanEnd()) {
-				messages.add(new ValidationMessage(Severity.ERROR, "The field '" + field + "' is delimited with '" + field.getParseSeparator() + "' but no separator was found and this field is not optional at " + (int) counting.getReadTotal()));
-				return null;
-			}
-			else if (field.getFixed() != null && !field.getFixed().equals(value)) {
-				messages.add(new ValidationMessage(Severity.ERROR, "The field '" + field + "' does not have the correct fixed value, expecting '" + field.getFixed() + "', received '" + value + "' at " + (int) counting.getReadTotal()));
-				return null;
-			}
-			else if (field.getMatch() != null && !value.matches(field.getMatch())) {
-				messages.add(new ValidationMessage(Severity.ERROR, "The field '" + field + "' does not match the given regex, expecting match for '" + field.getMatch() + "', received '" + value + "' at " + (int) counting.getReadTotal()));
+				context.getDiagnostics().add(Severity.ERROR, Problem.NO_SEPARATOR, counting.getReadTotal(), field);
+				if (context.getStatistics() != null) {
+					context.getStatistics().cause(field);
+				}
 				return null;
 			}
-			if (field.getMap() != null) {
-				// if it's fixed length, it might be padded
-				if (field.getLength() != null) {
-					String pad = field.getPad() == null ? " " : field.getPad();
-					if (field.isLeftAlign()) {
-						while (value.endsWith(pad)) {
-							value = value.substring(0, value.length() - pad.length());
-						}
-					}
-					else {
-						while (value.startsWith(pad)) {
-							value = value.substring(pad.length());
-						}
-					}
-				}
-				if (field.getMinLength() != null && value.length() < field.getMinLength()) {
-					messages.add(new ValidationMessage(Severity.ERROR, "The field '" + field + "' does not have enough characters:" + value.length() + " < " + field.getMinLength() + " at " +  (int) counting.getReadTotal()));
-					return null;
-				}
-				Object unmarshalledValue = value;
-				if (value.isEmpty()) {
-					unmarshalledValue = null;
-				}
-				// check if we want to use a formatter
-				else if (field.getFormatter() != null) {
-					try {
-						Object formatterInstance = Thread.currentThread().getContextClassLoader().loadClass(field.getFormatter()).newInstance();
-						if (formatterInstance instanceof Unmarshallable) {
-							Unmarshallable<?> unmarshallable = (Unmarshallable<?>) formatterInstance;
-							List<Value<?>> values = new ArrayList<Value<?>>();
-							for (Property<?> property : unmarshallable.getSupportedProperties()) {
-								QName qname = new QName(property.getName());
-								if (field.getOtherAttributes() != null && field.getOtherAttributes().containsKey(qname)) {
-									values.add(new ValueImpl(property, converter.convert(field.getOtherAttributes().get(qname), property.getValueClass())));
-								}
-							}
-							unmarshalledValue = unmarshallable.unmarshal(value, values.toArray(new Value[0]));
-						}
-						else if (formatterInstance instanceof XmlAdapter) {
-							XmlAdapter adapter = (XmlAdapter) formatterInstance;
-							try {
-								unmarshalledValue = adapter.unmarshal(value);
-							}
-							catch (Exception e) {
-								throw new ParseException("The formatter " + field.getFormatter() + " failed to unmarshal the value: " + e.getMessage(), 0);
-							}
-						}
-						else {
-							throw new ParseException("Unknown unmarshaller: " + field.getFormatter(), 0);
-						}
-					}
-					catch (InstantiationException e) {
-						throw new ParseException("Can not instantiate formatter " + field.getFormatter(), 0);
-					}
-					catch (IllegalAccessException e) {
-						throw new ParseException("Can not instantiate formatter " + field.getFormatter(), 0);
-					}
-					catch (ClassNotFoundException e) {
-						throw new ParseException("Can not find formatter " + field.getFormatter(), 0);
-					}
+			else if (!unmarshalField(context, field, value, counting.getReadTotal(), content)) {
+				if (context.getStatistics() != null) {
+					context.getStatistics().cause(field);
 				}
-				// if no custom formatter is used, the default conversion logic will be used
-				content.set(field.getMap(), unmarshalledValue);
+				return null;
 			}
 		}
 		if (pushback != null && delimited != null && delimited.getRemainder() != null) {
@@ -516,123 +836,674 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 		return pushback;
 	}
 	
-	
-	private char [] stringificationBuffer = new char[4096];
-	
 	/**
-	 * This is a copy of the IOUtils.toString() method with the exception that the used char array does not have to be instantiated every time
-	 * This appears to make a ~30% difference in performance
+	 * Checks that a delimited record was read entirely and has the correct length, the matched delimiter is added to the offsets
 	 */
-	public String toString(ReadableContainer<CharBuffer> readable) throws IOException {
-		StringBuilder builder = new StringBuilder();
-		long read = 0;
-		while ((read = readable.read(IOUtils.wrap(stringificationBuffer, false))) > 0) {
-			builder.append(new String(stringificationBuffer, 0, (int) read));
+	private void endRecord(ParseContext context, CompiledFragment fragment, ReadableContainer<CharBuffer> readable, BackedDelimitedCharContainer delimited, CountingReadableContainerImpl<CharBuffer> counting, long initialRead, long alreadyRead) throws IOException, ParseException {
+		if (delimited != null) {
+			// if we get here, it is possible the record was not read to the fullest (e.g. fixed length)
+			String remainder = context.toString(readable);
+			if (!remainder.isEmpty()) {
+				throw new ParseException("There are " + remainder.length() + " dangling characters at the end of the " + fragment + ": '" + remainder + "'", (int) alreadyRead);
+			}
+			long hasActuallyRead = alreadyRead - initialRead;
+			// check any length set on the entire fragment
+			if (fragment.getLength() != null) {
+				long shouldHaveRead = fragment.getLength();
+				if (shouldHaveRead != hasActuallyRead) {
+					throw new ParseException("There were not enough characters for the " + fragment + ": " + hasActuallyRead + " != " + shouldHaveRead, (int) alreadyRead);
+				}
+			}
+			else if (fragment.getMinLength() != null) {
+				if (hasActuallyRead < fragment.getMinLength()) {
+					throw new ParseException("There were not enough characters for the " + fragment + ": " + hasActuallyRead + " < " + fragment.getMinLength(), (int) alreadyRead);
+				}
+			}
+		}
+		// make sure the delimited is counted into the offsets
+		if (delimited != null && delimited.getMatchedDelimiter() != null) {
+			counting.add(delimited.getMatchedDelimiter().length());
 		}
-		return builder.toString();
-	}
-	
-	private String normalizeSeparator(String separator) {
-		return separator.replace("\\n", "\n")
-			.replace("\\r", "\r");
 	}
 	
-	@Override
-	public void marshal(OutputStream output, ComplexContent content, Value<?>...values) throws IOException {
-		Record record = new Record();
-		if (getConfig().getRecord() != null) {
-			for (Fragment child : getConfig().getChildren()) {
-				if (child instanceof Record && getConfig().getRecord().equals(((Record) child).getName())) {
-					record.getChildren().add(child);
-					break;
+	/**
+	 * A record that only contains fixed length fields is read in one go, the fields are sliced from the characters at their offset.
+	 * This gives the same result as parsing the fields one by one but without a container per field.
+	 */
+	private String unmarshalSliced(ParseContext context, CompiledRecord record, ReadableContainer<CharBuffer> readable, BackedDelimitedCharContainer delimited, CountingReadableContainerImpl<CharBuffer> counting, ComplexContent content) throws IOException, ParseException {
+		long initialRead = counting.getReadTotal();
+		int fieldLength = record.getSlicedLength();
+		// if the record is longer than its fields and nothing else delimits it, the filler at the end belongs to the record (the marshaller pads it)
+		int length = delimited == null && record.getLength() != null ? Math.max(fieldLength, record.getLength()) : fieldLength;
+		int read = context.read(readable, length);
+		char [] characters = context.getRecordBuffer();
+		int offset = 0;
+		for (CompiledFragment child : record.getChildren()) {
+			CompiledField field = (CompiledField) child;
+			int amount = Math.min(field.getLength(), read - offset);
+			// unmapped fields without validation can be skipped entirely
+			if (field.getMap() != null || field.getFixed() != null || field.getPattern() != null) {
+				if (!unmarshalField(context, field, characters, offset, amount, initialRead + offset + amount, content)) {
+					counting.setReadTotal(initialRead + offset);
+					context.getDiagnostics().add(Severity.ERROR, Problem.NOT_PARSED, initialRead + offset, field, record);
+					if (context.getStatistics() != null) {
+						context.getStatistics().cause(field);
+					}
+					return null;
 				}
 			}
+			offset += amount;
 		}
-		else {
-			record.setChildren(getConfig().getChildren());
-		}
-		marshal(IOUtils.wrapWritable(IOUtils.wrap(output), charset), record, content);
+		long alreadyRead = initialRead + read;
+		counting.setReadTotal(alreadyRead);
+		endRecord(context, record, readable, delimited, counting, initialRead, alreadyRead);
+		return delimited != null && delimited.getRemainder() != null ? delimited.getRemainder() : "";
 	}
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private void marshal(WritableContainer<CharBuffer> output, Fragment fragment, ComplexContent content) throws IOException, MarshalException {
-		if (fragment instanceof Record) {
+	/**
+	 * A delimited record where the fields are delimited by literal separators is read entirely and split on the separators in a single scan.
+	 * The result, including the messages, is the same as parsing each field with its own delimited container.
+	 */
+	private String unmarshalScanned(ParseContext context, CompiledRecord record, ReadableContainer<CharBuffer> readable, BackedDelimitedCharContainer delimited, CountingReadableContainerImpl<CharBuffer> counting, ComplexContent content) throws IOException, ParseException {
+		long initialRead = counting.getReadTotal();
+		int read = context.readAll(readable);
+		char [] characters = context.getRecordBuffer();
+		int offset = 0;
+		for (CompiledFragment child : record.getChildren()) {
+			CompiledField field = (CompiledField) child;
+			String separator = field.getParseSeparator();
+			int end = separator == null ? -1 : indexOf(characters, offset, read, separator);
+			// without a separator, the field takes whatever is left in the record
+			int next = end < 0 ? read : end + separator.length();
+			if (end < 0) {
+				end = read;
+			}
+			if (separator != null && next == end && !field.isCanEnd()) {
+				context.getDiagnostics().add(Severity.ERROR, Problem.NO_SEPARATOR, initialRead + end, field);
+			}
+			else if (unmarshalField(context, field, characters, offset, end - offset, initialRead + end, content)) {
+				offset = next;
+				continue;
+			}
+			counting.setReadTotal(initialRead + offset);
+			context.getDiagnostics().add(Severity.ERROR, Problem.NOT_PARSED, initialRead + offset, field, record);
+			if (context.getStatistics() != null) {
+				context.getStatistics().cause(field);
+			}
+			return null;
+		}
+		long alreadyRead = initialRead + offset;
+		if (offset < read) {
+			throw new ParseException("There are " + (read - offset) + " dangling characters at the end of the " + record + ": '" + new String(characters, offset, read - offset) + "'", (int) alreadyRead);
+		}
+		counting.setReadTotal(alreadyRead);
+		endRecord(context, record, readable, delimited, counting, initialRead, alreadyRead);
+		return delimited != null && delimited.getRemainder() != null ? delimited.getRemainder() : "";
+	}
+	
+	private static int indexOf(char [] characters, int from, int to, String separator) {
+		char first = separator.charAt(0);
+		int last = to - separator.length();
+		search: for (int i = from; i <= last; i++) {
+			if (characters[i] == first) {
+				for (int j = 1; j < separator.length(); j++) {
+					if (characters[i + j] != separator.charAt(j)) {
+						continue search;
+					}
+				}
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Validates the value of a field and sets it in the content (if it is mapped), false is returned if the value is not valid
+	 */
+	private boolean unmarshalField(ParseContext context, CompiledField field, String value, long position, ComplexContent content) throws ParseException {
+		if (field.getFixed() != null && !field.getFixed().equals(value)) {
+			context.getDiagnostics().add(Severity.ERROR, Problem.WRONG_FIXED_VALUE, position, field, value);
+			return false;
+		}
+		else if (!field.matches(value)) {
+			context.getDiagnostics().add(Severity.ERROR, Problem.NO_MATCH, position, field, value);
+			return false;
+		}
+		if (field.getMap() != null) {
+			// if it's fixed length, it might be padded
+			if (field.getLength() != null) {
+				value = trim(field, value);
+			}
+			if (field.getMinLength() != null && value.length() < field.getMinLength()) {
+				context.getDiagnostics().add(Severity.ERROR, Problem.TOO_SHORT, position, field, value);
+				return false;
+			}
+			field.getAccessor().set(content, value.isEmpty() ? null : decode(context, field, value, position));
+		}
+		return true;
+	}
+	
+	/**
+	 * Validates the value of a field that is still in the character buffer and sets it in the content.
+	 * If the field has a decoder and needs no string validation, the value is decoded in place, otherwise (or if the decoder does not recognize the value) we fall back to the string.
+	 */
+	private boolean unmarshalField(ParseContext context, CompiledField field, char [] characters, int offset, int length, long position, ComplexContent content) throws ParseException {
+		FieldDecoder decoder = field.getDecoder();
+		if (decoder == null || field.getFixed() != null || field.getPattern() != null || field.getMinLength() != null || (field.getLength() != null && field.getPad().length() > 1)) {
+			return unmarshalField(context, field, new String(characters, offset, length), position, content);
+		}
+		int start = offset, end = offset + length;
+		// a single character pad is trimmed in place, like trim() does
+		if (field.getLength() != null && field.getPad().length() == 1) {
+			char character = field.getPad().charAt(0);
+			if (field.isLeftAlign()) {
+				while (end > start && characters[end - 1] == character) {
+					end--;
+				}
+			}
+			else {
+				while (start < end && characters[start] == character) {
+					start++;
+				}
+			}
+		}
+		if (start == end) {
+			field.getAccessor().set(content, null);
+			return true;
+		}
+		Object value = decoder.decode(characters, start, end - start);
+		if (value == null) {
+			return unmarshalField(context, field, new String(characters, offset, length), position, content);
+		}
+		field.getAccessor().set(content, value);
+		return true;
+	}
+	
+	/**
+	 * Turns a non-empty value into the type of the field: the decoder (if any) handles the plain formats, then a formatter or implied decimals, the default conversion logic does the rest
+	 */
+	private Object decode(ParseContext context, CompiledField field, String value, long position) throws ParseException {
+		if (field.getDecoder() != null) {
+			Object decoded = field.getDecoder().decode(context.toCharacters(value), 0, value.length());
+			if (decoded != null) {
+				return decoded;
+			}
+		}
+		// check if we want to use a formatter
+		if (field.getFormatter() != null) {
+			if (context.getStatistics() != null) {
+				long started = System.nanoTime();
+				Object unmarshalledValue = field.getFormatter().unmarshal(value);
+				context.getStatistics().formatted(System.nanoTime() - started);
+				return unmarshalledValue;
+			}
+			return field.getFormatter().unmarshal(value);
+		}
+		else if (field.getImpliedDecimals() != null) {
+			try {
+				return new BigDecimal(value).movePointLeft(field.getImpliedDecimals());
+			}
+			catch (NumberFormatException e) {
+				throw new ParseException("The value '" + value + "' of " + field + " is not a number with implied decimals", (int) position);
+			}
+		}
+		// if no custom formatter is used, the default conversion logic will be used
+		return value;
+	}
+	
+	/**
+	 * Writes a number without its decimal point, the decimals beyond the implied ones are rounded
+	 */
+	static String toImpliedDecimals(CompiledField field, BigDecimal value) {
+		return value.setScale(field.getImpliedDecimals(), RoundingMode.HALF_UP).unscaledValue().toString();
+	}
+	
+	/**
+	 * Removes the padding of a fixed length field. The marshaller aligns the repeated pad with the value so a multi character pad can be cut off at the outer edge.
+	 */
+	static String trim(CompiledField field, String value) {
+		String pad = field.getPad();
+		int padLength = pad.length();
+		if (padLength == 0) {
+			return value;
+		}
+		int start = 0, end = value.length();
+		if (padLength == 1) {
+			char character = pad.charAt(0);
+			if (field.isLeftAlign()) {
+				while (end > 0 && value.charAt(end - 1) == character) {
+					end--;
+				}
+			}
+			else {
+				while (start < end && value.charAt(start) == character) {
+					start++;
+				}
+			}
+		}
+		// the padding after the value starts with the start of the pad, we look for the longest padding
+		else if (field.isLeftAlign()) {
+			end = 0;
+			while (!isPadding(value, end, value.length(), pad, 0)) {
+				end++;
+			}
+		}
+		// the padding before the value ends with the end of the pad
+		else {
+			start = end;
+			while (!isPadding(value, 0, start, pad, (padLength - start % padLength) % padLength)) {
+				start--;
+			}
+		}
+		return start == 0 && end == value.length() ? value : value.substring(start, end);
+	}
+	
+	private static boolean isPadding(String value, int start, int end, String pad, int phase) {
+		for (int i = start; i < end; i++) {
+			if (value.charAt(i) != pad.charAt((phase + i - start) % pad.length())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets a parsed child record in its parent, if the child is a list it is added at the end (possibly in a windowed list)
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void setChild(ParseContext context, ComplexContent content, CompiledRecord childRecord, String childPath, ComplexContent childContent, long start, long offset, Window...windows) throws IOException {
+		// streamed records are handed off instead of being added to the parent
+		if (context.isHandled(childPath)) {
+			context.handle(childContent, start);
+			return;
+		}
+		// if the type expects a list, it can be windowed
+		if (childRecord.isList()) {
+			Window activeWindow = null;
+			for (Window window : windows) {
+				if (window.getPath().equals(childPath)) {
+					activeWindow = window;
+					break;
+				}
+			}
+			// a list in a bean can be appended to directly
+			if (activeWindow == null && childRecord.getAccessor().add(content, childContent)) {
+				return;
+			}
+			// get the current value, see if there is a list already basically
+			// Note: this only works with integer indexed collections
+			Object currentObject = childRecord.getAccessor().get(content);
+			int index = 0;
+			if (currentObject != null) {
+				CollectionHandlerProvider provider = collectionHandler.getHandler(currentObject.getClass());
+				index = provider.getAsCollection(currentObject).size();
+			}
+			if (activeWindow != null) {
+				WindowedList list = null;
+				// if the current object is already a list but it is empty (e.g. default initialization), overwrite it with a windowed list
+				if (currentObject == null || (currentObject instanceof List && ((List) currentObject).isEmpty())) { 
+					list = new WindowedList(context.getResource(), activeWindow, new PartialFlatUnmarshaller(context.getResource(), context.getCheckpoints(), childRecord, childRecord.getType(), activeWindow, windows));
+					content.set(childRecord.getElement().getName(), list);
+				}
+				else if (currentObject instanceof WindowedList) {
+					list = (WindowedList) currentObject;
+				}
+				else {
+					throw new IllegalArgumentException("The collection already exists and is not windowed");
+				}
+				// always register the offset
+				list.setOffset(index, offset);
+				if (context.getRecorder() != null) {
+					context.getRecorder().record(childPath, list, index, offset);
+				}
+				// only register the object if it is within the window size
+				if (index < activeWindow.getSize()) {
+					content.set(childRecord.getElement().getName() + "[" + index + "]", childContent);
+				}
+			}
+			else {
+				// this reuses the internal collection handling
+				content.set(childRecord.getElement().getName() + "[" + index + "]", childContent);
+			}
+		}
+		else {
+			childRecord.getAccessor().set(content, childContent);
+		}
+	}
+	
+	/**
+	 * Reads a block of characters, splits it on the separator of the record and parses the records in parallel.
+	 * The records that were accepted (in order, up to the first one that fails) are returned, the rest of the block is pushed back.
+	 * A record that fails is not reported, the caller has to parse it sequentially to either end the list or get the correct error.
+	 */
+	private Block unmarshalBlock(final ParseContext context, final CompiledRecord record, final String path, long offset, int maxAmount, LimitedMarkableContainer<CharBuffer> marked) throws IOException {
+		Block result = new Block();
+		int blockSize = (int) Math.min(parallelBlockSize, context.getLookAhead() / 2);
+		final String block = context.toString(IOUtils.limitReadable(marked, blockSize));
+		boolean end = block.length() < blockSize;
+		String separator = record.getParseSeparator();
+		final List<Integer> ends = new ArrayList<Integer>();
+		final ParseStatistics statistics = context.getStatistics();
+		int index = 0;
+		while (ends.size() < maxAmount) {
+			int position = block.indexOf(separator, index);
+			if (position < 0) {
+				// at the end of the data, the last record does not need a separator
+				if (end && index < block.length()) {
+					ends.add(block.length());
+				}
+				break;
+			}
+			index = position + separator.length();
+			ends.add(index);
+		}
+		// a single record is not worth the overhead
+		if (ends.size() >= 2) {
+			int tasks = Math.min(ends.size(), Math.max(1, parallelism) * 4);
+			int perTask = (ends.size() + tasks - 1) / tasks;
+			List<Future<Block>> futures = new ArrayList<Future<Block>>();
+			for (int from = 0; from < ends.size(); from += perTask) {
+				final int start = from;
+				final int stop = Math.min(ends.size(), from + perTask);
+				futures.add(executorService.submit(new Callable<Block>() {
+					@Override
+					public Block call() throws Exception {
+						// each task has its own statistics, they are merged by the caller once it accepts the task
+						Block part = new Block();
+						part.statistics = statistics == null ? null : new ParseStatistics(statistics.getType(), statistics.getLookAhead());
+						for (int i = start; i < stop; i++) {
+							int begin = i == 0 ? 0 : ends.get(i - 1);
+							ComplexContent content = unmarshalSingle(record, path, block.substring(begin, ends.get(i)), part.statistics);
+							if (content == null) {
+								break;
+							}
+							part.contents.add(content);
+						}
+						part.complete = part.contents.size() == stop - start;
+						return part;
+					}
+				}));
+			}
+			try {
+				for (Future<Block> future : futures) {
+					Block part = future.get();
+					if (statistics != null) {
+						statistics.merge(part.statistics);
+					}
+					for (ComplexContent content : part.contents) {
+						result.offsets.add(offset + ends.get(result.contents.size()));
+						result.contents.add(content);
+					}
+					if (!part.complete) {
+						break;
+					}
+				}
+			}
+			catch (ExecutionException e) {
+				// a record that does not parse is not an exception, this is an actual problem
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while parsing " + path);
+			}
+			finally {
+				// the tasks after a failure are not used, they only work on their own state so they can be stopped at any point
+				for (Future<Block> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+		result.complete = ends.size() >= 2 && result.contents.size() == ends.size();
+		int consumed = result.contents.isEmpty() ? 0 : ends.get(result.contents.size() - 1);
+		marked.moveMarkAbsolute(offset + consumed);
+		marked.pushback(IOUtils.wrap(block.substring(consumed)));
+		if (statistics != null) {
+			statistics.pushback(record, block.length() - consumed);
+		}
+		return result;
+	}
+	
+	/**
+	 * Parses a single record in isolation, it only returns the content if the record consumed the text exactly.
+	 * The statistics of the record (if any) are merged into the given statistics.
+	 */
+	private ComplexContent unmarshalSingle(CompiledRecord record, String path, String text, ParseStatistics statistics) throws IOException {
+		ParseContext context = new ParseContext(null);
+		if (statistics != null) {
+			context.setStatistics(new ParseStatistics(statistics.getType(), statistics.getLookAhead()));
+		}
+		LimitedMarkableContainer<CharBuffer> marked = new LimitedMarkableContainer<CharBuffer>(IOUtils.wrap(text), 0);
+		marked.mark();
+		EOFReadableContainer<CharBuffer> eof = new EOFReadableContainer<CharBuffer>(marked);
+		CountingReadableContainerImpl<CharBuffer> counting = new CountingReadableContainerImpl<CharBuffer>(eof);
+		ComplexContent content = record.getType().newInstance();
+		boolean successful = false;
+		try {
+			String pushback = unmarshal(context, path, marked, eof, counting, record, content);
+			successful = pushback != null && pushback.isEmpty() && counting.getReadTotal() == text.length();
+			return successful ? content : null;
+		}
+		catch (ParseException e) {
+			return null;
+		}
+		finally {
+			if (statistics != null) {
+				if (successful) {
+					context.getStatistics().matched(record, text.length());
+				}
+				else {
+					context.getStatistics().failed(record);
+				}
+				statistics.merge(context.getStatistics());
+			}
+		}
+	}
+	
+	private static class Block {
+		private List<ComplexContent> contents = new ArrayList<ComplexContent>();
+		// the offset at the end of each record
+		private List<Long> offsets = new ArrayList<Long>();
+		// whether all the records in the block were accepted
+		private boolean complete;
+		// the statistics of the records in the block, if any
+		private ParseStatistics statistics;
+	}
+	
+	/**
+	 * Checks the discriminator of the record (if any) against the next characters.
+	 * If the record is not a candidate, the characters are consumed as if it was a failed trial parse so the caller has to reset.
+	 * If it is a candidate and we had to read, the characters are pushed back in the same way as the remainder of a successful child.
+	 * The peeked value is cached per position so siblings can be checked without reading again.
+	 */
+	private boolean isCandidate(ParseContext context, CompiledRecord record, Peek peek, long position, ReadableContainer<CharBuffer> readable, BackedDelimitedCharContainer delimited, LimitedMarkableContainer<CharBuffer> marked) throws IOException {
+		Discriminator discriminator = record.getDiscriminator();
+		if (discriminator == null || peek == null) {
+			return true;
+		}
+		boolean fresh = false;
+		if (peek.position != position || (!peek.exhausted && peek.value.length() < discriminator.getLength())) {
+			peek.value = context.toString(IOUtils.limitReadable(readable, discriminator.getLength()));
+			peek.exhausted = peek.value.length() < discriminator.getLength();
+			peek.position = position;
+			fresh = true;
+		}
+		if (!discriminator.matches(peek.value)) {
+			context.getDiagnostics().add(Severity.ERROR, Problem.NO_DISCRIMINATOR_MATCH, position, record, discriminator);
+			if (context.getStatistics() != null) {
+				context.getStatistics().cause(record);
+			}
+			return false;
+		}
+		if (fresh) {
+			if (context.getStatistics() != null) {
+				context.getStatistics().pushback(record, peek.value.length());
+			}
+			marked.moveMarkAbsolute(position);
+			if (delimited != null) {
+				delimited.pushback(IOUtils.wrap(peek.value));
+			}
+			else {
+				marked.pushback(IOUtils.wrap(peek.value));
+			}
+		}
+		return true;
+	}
+	
+	private static class Peek {
+		private long position = -1;
+		private String value;
+		private boolean exhausted;
+	}
+	
+	/**
+	 * The parser uses a buffer per parse context, this method uses a new buffer for every call
+	 */
+	public String toString(ReadableContainer<CharBuffer> readable) throws IOException {
+		return new ParseContext(null).toString(readable);
+	}
+	
+	@Override
+	public void marshal(OutputStream output, ComplexContent content, Value<?>...values) throws IOException {
+		FlatWriter writer = new FlatWriter(IOUtils.wrapWritable(IOUtils.wrap(output), charset), MARSHAL_BUFFER_SIZE);
+		marshal(writer, compile(content.getType()).getRoot(), content);
+		writer.flush();
+	}
+	
+	/**
+	 * Marshals to the channel starting at its current position. If an executor service is set and a list of records has a fixed length (in bytes),
+	 * the chunks of that list are written in parallel straight to their position in the channel.
+	 */
+	public void marshal(FileChannel channel, ComplexContent content) throws IOException {
+		FlatWriter writer = new FlatWriter(channel, channel.position(), charset, MARSHAL_BUFFER_SIZE);
+		marshal(writer, compile(content.getType()).getRoot(), content);
+		writer.flush();
+		channel.position(writer.getChannelPosition());
+	}
+	
+	/**
+	 * Marshals the content but the records at the given path (relative to the root, e.g. "employees") are taken from the iterator instead of the content.
+	 * The records can be complex content or beans, they are written as they are read so the full list never has to be in memory.
+	 */
+	public void marshal(OutputStream output, ComplexContent content, String path, Iterator<?> records) throws IOException {
+		CompiledRecord root = compile(content.getType()).getRoot();
+		FlatWriter writer = new FlatWriter(IOUtils.wrapWritable(IOUtils.wrap(output), charset), MARSHAL_BUFFER_SIZE);
+		marshal(writer, root, content, new RecordSource(getStreamedRecord(root, path), records));
+		writer.flush();
+	}
+	
+	public void marshal(OutputStream output, ComplexContent content, String path, Iterable<?> records) throws IOException {
+		marshal(output, content, path, records.iterator());
+	}
+	
+	public void marshal(OutputStream output, ComplexContent content, String path, Stream<?> records) throws IOException {
+		marshal(output, content, path, records.iterator());
+	}
+	
+	/**
+	 * Finds the list record for the given path, records that are not mapped are skipped. The path can not go through another list as it would be repeated.
+	 */
+	private CompiledRecord getStreamedRecord(CompiledRecord root, String path) {
+		CompiledRecord current = root;
+		for (String part : path.split("/")) {
+			if (current != root && current.isList()) {
+				throw new IllegalArgumentException("The path " + path + " goes through the list " + current.getMap());
+			}
+			current = getMappedRecord(current, part);
+			if (current == null) {
+				throw new IllegalArgumentException("No record found for the path: " + path);
+			}
+		}
+		if (!current.isList()) {
+			throw new IllegalArgumentException("The record at " + path + " is not a list");
+		}
+		return current;
+	}
+	
+	private CompiledRecord getMappedRecord(CompiledRecord parent, String name) {
+		for (CompiledFragment child : parent.getChildren()) {
+			if (child instanceof CompiledRecord) {
+				if (name.equals(child.getMap())) {
+					return (CompiledRecord) child;
+				}
+				else if (child.getMap() == null) {
+					CompiledRecord result = getMappedRecord((CompiledRecord) child, name);
+					if (result != null) {
+						return result;
+					}
+				}
+			}
+		}
+		return null;
+	}
+	
+	private void marshal(FlatWriter output, CompiledFragment fragment, ComplexContent content) throws IOException, MarshalException {
+		marshal(output, fragment, content, null);
+	}
+	
+	/**
+	 * The content is either complex content or a bean, beans are not wrapped because the accessors of the fragments can read them directly
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void marshal(FlatWriter output, CompiledFragment fragment, Object content, RecordSource source) throws IOException, MarshalException {
+		if (source != null && fragment == source.record) {
+			if (isParallel(output)) {
+				marshalParallel(output, source.record, source.records);
+			}
+			else {
+				while (source.records.hasNext()) {
+					marshalRecord(output, source.record, source.records.next(), null);
+				}
+			}
+		}
+		else if (fragment instanceof CompiledRecord) {
 			if (fragment.getMap() != null) {
-				Object object = content.get(fragment.getMap());
+				Object object = fragment.getAccessor().get(content);
 				if (object != null) {
-					Element<?> definition = content.getType().get(fragment.getMap());
-					Value<Integer> maxOccurs = definition.getProperty(MaxOccursProperty.getInstance());
 					// it's a list, we need to loop
-					if (maxOccurs != null && maxOccurs.getValue() != 1) {
+					if (((CompiledRecord) fragment).isList()) {
 						CollectionHandlerProvider provider = collectionHandler.getHandler(object.getClass());
-						for (Object child : provider.getAsIterable(object)) {
-							if (!(child instanceof ComplexContent)) {
-								child = new BeanInstance(child);
+						if (isParallel(output)) {
+							marshalParallel(output, (CompiledRecord) fragment, provider.getAsIterable(object).iterator());
+						}
+						else {
+							for (Object child : provider.getAsIterable(object)) {
+								marshalRecord(output, (CompiledRecord) fragment, child);
 							}
-							marshalRecord(output, (Record) fragment, (ComplexContent) child);
 						}
 					}
 					else {
-						if (!(object instanceof ComplexContent)) {
-							object = new BeanInstance(object);
-						}
-						marshalRecord(output, (Record) fragment, (ComplexContent) object);
+						marshalRecord(output, (CompiledRecord) fragment, object, source);
 					}
 				}
 			}
 			else {
-				marshalRecord(output, (Record) fragment, content);
+				marshalRecord(output, (CompiledRecord) fragment, content, source);
 			}
 		}
 		// you can have fixed fields not mapped from the source
-		else if (((Field) fragment).getFixed() != null) {
-			String value = ((Field) fragment).getFixed();
+		else if (((CompiledField) fragment).getFixed() != null) {
+			output.write(((CompiledField) fragment).getFixed());
 			if (fragment.getFormatSeparator() != null) {
-				value += normalizeSeparator(fragment.getFormatSeparator());
+				output.write(fragment.getFormatSeparator());
 			}
-			output.write(IOUtils.wrap(value));
 		}
 		// this will map the fields that are mapped from the source or are basically not mapped at all (like a spaceholder for fixed length fields that are not mapped)
 		else {
-			Field field = (Field) fragment;
-			Object object = fragment.getMap() != null ? content.get(fragment.getMap()) : null;
+			CompiledField field = (CompiledField) fragment;
+			Object object = fragment.getMap() != null ? fragment.getAccessor().get(content) : null;
 			String mappedValue = null;
 			if (object != null && field.getFormatter() != null) {
-				try {
-					Object formatterInstance = Thread.currentThread().getContextClassLoader().loadClass(field.getFormatter()).newInstance();
-					if (formatterInstance instanceof Marshallable) {
-						Marshallable marshallable = (Marshallable<?>) formatterInstance;
-						List<Value<?>> values = new ArrayList<Value<?>>();
-						for (Property<?> property : marshallable.getSupportedProperties()) {
-							QName qname = new QName(property.getName());
-							if (field.getOtherAttributes() != null && field.getOtherAttributes().containsKey(qname)) {
-								values.add(new ValueImpl(property, converter.convert(field.getOtherAttributes().get(qname), property.getValueClass())));
-							}
-						}
-						mappedValue = marshallable.marshal(object, values.toArray(new Value[0]));
-					}
-					else if (formatterInstance instanceof XmlAdapter) {
-						XmlAdapter adapter = (XmlAdapter) formatterInstance;
-						try {
-							mappedValue = (String) adapter.marshal(object);
-						}
-						catch (Exception e) {
-							throw new MarshalException("The formatter " + field.getFormatter() + " failed to unmarshal the value: " + e.getMessage(), e);
-						}
-					}
-					else {
-						throw new MarshalException("Unknown marshaller: " + field.getFormatter());
-					}
-				}
-				catch (InstantiationException e) {
-					throw new MarshalException("Can not instantiate formatter " + field.getFormatter(), e);
-				}
-				catch (IllegalAccessException e) {
-					throw new MarshalException("Can not instantiate formatter " + field.getFormatter(), e);
-				}
-				catch (ClassNotFoundException e) {
-					throw new MarshalException("Can not find formatter " + field.getFormatter(), e);
-				}
+				mappedValue = field.getFormatter().marshal(object);
+			}
+			else if (object instanceof String) {
+				mappedValue = (String) object;
+			}
+			else if (object instanceof Number && field.getImpliedDecimals() != null) {
+				mappedValue = toImpliedDecimals(field, object instanceof BigDecimal ? (BigDecimal) object : new BigDecimal(object.toString()));
 			}
 			// otherwise, if the object is not null, use default conversion
 			else if (object != null) {
@@ -641,81 +1512,310 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 			else {
 				mappedValue = "";
 			}
+			// the pad is copied from a precomputed run, the result is the same as repeatedly adding the pad and truncating
 			if (fragment.getLength() != null) {
-				String pad = field.getPad() == null ? " " : field.getPad();
-				while (mappedValue.length() < fragment.getLength()) {
-					if (field.isLeftAlign()) {
-						mappedValue += pad;
-					}
-					else {
-						mappedValue = pad + mappedValue;
-					}
+				output.write(mappedValue, field);
+			}
+			else {
+				output.write(mappedValue);
+			}
+			if (fragment.getFormatSeparator() != null) {
+				output.write(fragment.getFormatSeparator());
+			}
+		}
+	}
+	
+	/**
+	 * Nested lists in a chunk are marshalled inline: a worker that waits for other workers can deadlock a bounded pool
+	 */
+	private boolean isParallel(FlatWriter output) {
+		return executorService != null && !output.isBuffer();
+	}
+	
+	/**
+	 * The records are marshalled in chunks on the executor and written in the original order, only a limited amount of chunks is kept in memory.
+	 * For positional writers where each record has the same amount of bytes, the chunks are written straight to their position.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void marshalParallel(FlatWriter output, final CompiledRecord record, Iterator children) throws IOException {
+		List<Object> chunk = nextChunk(children);
+		// not worth the overhead
+		if (chunk.size() < marshalChunkSize) {
+			marshalChunk(output, record, chunk);
+			return;
+		}
+		final long recordBytes = output.isPositional() ? getRecordBytes(record) : -1;
+		final FileChannel channel = recordBytes > 0 ? output.getChannel() : null;
+		long start = channel != null ? output.getChannelPosition() : 0;
+		long total = 0;
+		Deque<Future<FlatWriter>> inFlight = new ArrayDeque<Future<FlatWriter>>();
+		try {
+			while (!chunk.isEmpty()) {
+				if (inFlight.size() >= Math.max(1, maxChunksInFlight)) {
+					complete(inFlight.removeFirst(), output, channel);
 				}
-				// this can happen if the pad is too long
-				if (mappedValue.length() > fragment.getLength()) {
-					if (field.isLeftAlign()) {
-						mappedValue = mappedValue.substring(0, fragment.getLength());
-					}
-					else {
-						mappedValue = mappedValue.substring(mappedValue.length() - fragment.getLength());
+				final List<Object> current = chunk;
+				final long position = start + total * recordBytes;
+				inFlight.add(executorService.submit(new Callable<FlatWriter>() {
+					@Override
+					public FlatWriter call() throws Exception {
+						FlatWriter writer = new FlatWriter(current.size() * (record.getLength() == null ? 64 : record.getLength() + 2));
+						marshalChunk(writer, record, current);
+						if (channel != null) {
+							long written = writer.writeTo(channel, position, charset);
+							if (written != current.size() * recordBytes) {
+								throw new IOException("The records at " + record.getMap() + " do not have a fixed length, expected " + (current.size() * recordBytes) + " bytes but got " + written);
+							}
+						}
+						return writer;
 					}
-				}
+				}));
+				total += current.size();
+				chunk = nextChunk(children);
 			}
-			if (fragment.getFormatSeparator() != null) {
-				mappedValue += normalizeSeparator(fragment.getFormatSeparator());
+			while (!inFlight.isEmpty()) {
+				complete(inFlight.removeFirst(), output, channel);
+			}
+		}
+		finally {
+			for (Future<FlatWriter> future : inFlight) {
+				future.cancel(true);
 			}
-			output.write(IOUtils.wrap(mappedValue));
+		}
+		if (channel != null) {
+			output.skip(total * recordBytes);
 		}
 	}
 	
-	private void marshalRecord(WritableContainer<CharBuffer> output, Record record, ComplexContent content) throws IOException {
-		CountingWritableContainer<CharBuffer> counted = IOUtils.countWritable(output);
-		for (Fragment childFragment : record.getChildren()) {
-			if (childFragment instanceof Record) {
-				childFragment = ((Record) childFragment).resolve(getConfig().getChildren());
+	private void complete(Future<FlatWriter> future, FlatWriter output, FileChannel channel) throws IOException {
+		try {
+			FlatWriter writer = future.get();
+			// if there is no channel, the chunk was not written yet
+			if (channel == null) {
+				output.write(writer);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while marshalling");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
-			marshal(counted, childFragment, content);
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private List<Object> nextChunk(Iterator children) {
+		List<Object> chunk = new ArrayList<Object>();
+		while (chunk.size() < marshalChunkSize && children.hasNext()) {
+			chunk.add(children.next());
+		}
+		return chunk;
+	}
+	
+	private void marshalChunk(FlatWriter output, CompiledRecord record, List<Object> chunk) throws IOException {
+		for (Object child : chunk) {
+			marshalRecord(output, record, child);
+		}
+	}
+	
+	/**
+	 * The amount of bytes a record takes up if it is padded to a fixed length and the charset has a fixed width, otherwise -1
+	 * Note that a record with a separator is not padded
+	 */
+	private long getRecordBytes(CompiledRecord record) {
+		if (record.getLength() == null || record.getFormatSeparator() != null || !charset.canEncode()) {
+			return -1;
+		}
+		float width = charset.newEncoder().maxBytesPerChar();
+		if (width != charset.newEncoder().averageBytesPerChar()) {
+			return -1;
+		}
+		return record.getLength() * (long) width;
+	}
+	
+	private void marshalRecord(FlatWriter output, CompiledRecord record, Object content) throws IOException {
+		marshalRecord(output, record, content, null);
+	}
+	
+	private void marshalRecord(FlatWriter output, CompiledRecord record, Object content, RecordSource source) throws IOException {
+		long start = output.getWritten();
+		for (CompiledFragment childFragment : record.getChildren()) {
+			marshal(output, childFragment, content, source);
 		}
 		if (record.getFormatSeparator() != null) {
-			output.write(IOUtils.wrap(normalizeSeparator(record.getFormatSeparator())));
+			output.write(record.getFormatSeparator());
 		}
 		else if (record.getLength() != null) {
-			for (long i = counted.getWrittenTotal(); i < record.getLength(); i++) {
-				output.write(IOUtils.wrap(" "));
-			}
+			output.fill(' ', record.getLength() - (output.getWritten() - start));
 		}
 	}
 	
+	/**
+	 * The records for a list that are streamed from an iterator instead of taken from the content
+	 */
+	private static class RecordSource {
+		private CompiledRecord record;
+		private Iterator<?> records;
+		
+		RecordSource(CompiledRecord record, Iterator<?> records) {
+			this.record = record;
+			this.records = records;
+		}
+	}
+	
+	/**
+	 * Reloads batches of records for a windowed list. It holds no state of its own and each batch gets its own parse context so batches can be loaded concurrently.
+	 */
 	public class PartialFlatUnmarshaller implements PartialUnmarshaller {
 
-		private Record record;
-		private ComplexType type;
-		private Window thisWindow;
-		private List<Window> otherWindows;
+		private final ReadableResource resource;
+		private final CompiledRecord record;
+		private final ComplexType type;
+		private final Window thisWindow;
+		private final Window [] otherWindows;
+		private final Checkpoints checkpoints;
 		
+		/**
+		 * The record is compiled against the given type
+		 */
 		public PartialFlatUnmarshaller(Record record, ComplexType type, Window thisWindow, Window...allWindows) {
+			this(null, null, new CompiledRecord(getConfig(), record.resolve(getConfig().getChildren()), null, type), type, thisWindow, allWindows);
+		}
+		
+		public PartialFlatUnmarshaller(ReadableResource resource, CompiledRecord record, ComplexType type, Window thisWindow, Window...allWindows) {
+			this(resource, null, record, type, thisWindow, allWindows);
+		}
+		
+		PartialFlatUnmarshaller(ReadableResource resource, Checkpoints checkpoints, CompiledRecord record, ComplexType type, Window thisWindow, Window...allWindows) {
+			this.resource = resource;
+			this.checkpoints = checkpoints;
 			this.record = record;
 			this.type = type;
 			this.thisWindow = thisWindow;
 			// make sure we remove the active window, otherwise the path will be reused for windowing!
-			this.otherWindows = new ArrayList<Window>(Arrays.asList(allWindows));
-			this.otherWindows.remove(thisWindow);
+			List<Window> otherWindows = new ArrayList<Window>(Arrays.asList(allWindows));
+			otherWindows.remove(thisWindow);
+			this.otherWindows = otherWindows.toArray(new Window[otherWindows.size()]);
 		}
 		
 		@Override
 		public List<ComplexContent> unmarshal(InputStream input, long offset, int batchSize) throws IOException, ParseException {
-			ReadableContainer<CharBuffer> readable = IOUtils.wrapReadable(IOUtils.wrap(input), charset);
-			if (IOUtils.copyChars(readable, IOUtils.newCharSink(offset)) != offset) {
+			long [] checkpoint = getCheckpoint(offset);
+			long skip = checkpoint[1];
+			while (skip > 0) {
+				long skipped = input.skip(skip);
+				if (skipped <= 0) {
+					throw new IOException("Could not skip to byte position " + checkpoint[1]);
+				}
+				skip -= skipped;
+			}
+			ParseContext context = acquireContext(resource, false);
+			try {
+				return unmarshal(context, context.getDecoder(charset).reset(IOUtils.wrap(input), getReadBufferSize(resource, CompiledFlatBinding.MIN_LOOK_AHEAD)), offset, offset - checkpoint[0], batchSize);
+			}
+			finally {
+				releaseContext(context);
+			}
+		}
+		
+		/**
+		 * Loads a batch straight from the resource, this is only possible if the unmarshaller was created with a resource
+		 */
+		public List<ComplexContent> unmarshal(long offset, int batchSize) throws IOException, ParseException {
+			if (resource == null) {
+				throw new IllegalStateException("The partial unmarshaller for " + thisWindow.getPath() + " has no resource, pass the input stream to read from instead");
+			}
+			long [] checkpoint = getCheckpoint(offset);
+			ParseContext context = acquireContext(resource, false);
+			try {
+				if (resource instanceof MappedFileResource) {
+					return unmarshal(context, ((MappedFileResource) resource).getCharacters(charset, checkpoint[1]), offset, offset - checkpoint[0], batchSize);
+				}
+				ReadableContainer<ByteBuffer> bytes = resource.getReadable();
+				try {
+					// skipping the bytes is still a lot cheaper than decoding them
+					ReadableContainer<ByteBuffer> skip = IOUtils.limitReadable(bytes, checkpoint[1]);
+					byte [] buffer = new byte[8192];
+					while (skip.read(IOUtils.wrap(buffer, false)) > 0);
+					return unmarshal(context, context.getDecoder(charset).reset(bytes, getReadBufferSize(resource, CompiledFlatBinding.MIN_LOOK_AHEAD)), offset, offset - checkpoint[0], batchSize);
+				}
+				finally {
+					bytes.close();
+				}
+			}
+			finally {
+				releaseContext(context);
+			}
+		}
+		
+		/**
+		 * The character offset and byte offset of the closest checkpoint before the given character offset
+		 */
+		private long [] getCheckpoint(long offset) {
+			return checkpoints == null ? new long [] { 0, 0 } : checkpoints.floor(offset);
+		}
+		
+		/**
+		 * Loads the batches at the given offsets on the executor, the batches are returned in the order of the offsets
+		 */
+		public List<List<ComplexContent>> unmarshal(ExecutorService executor, final int batchSize, long...offsets) throws IOException, ParseException {
+			List<Future<List<ComplexContent>>> futures = new ArrayList<Future<List<ComplexContent>>>();
+			for (final long offset : offsets) {
+				futures.add(executor.submit(new Callable<List<ComplexContent>>() {
+					@Override
+					public List<ComplexContent> call() throws Exception {
+						return unmarshal(offset, batchSize);
+					}
+				}));
+			}
+			List<List<ComplexContent>> batches = new ArrayList<List<ComplexContent>>();
+			try {
+				for (Future<List<ComplexContent>> future : futures) {
+					batches.add(future.get());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while loading " + thisWindow.getPath());
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof ParseException) {
+					throw (ParseException) e.getCause();
+				}
+				else if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+			finally {
+				for (Future<List<ComplexContent>> future : futures) {
+					future.cancel(true);
+				}
+			}
+			return batches;
+		}
+		
+		private List<ComplexContent> unmarshal(ParseContext context, ReadableContainer<CharBuffer> readable, long offset, long skip, int batchSize) throws IOException, ParseException {
+			if (IOUtils.copyChars(readable, IOUtils.newCharSink(skip)) != skip) {
 				throw new IOException("Could not skip to position " + offset);
 			}
 			List<ComplexContent> entries = new ArrayList<ComplexContent>();
+			// the offsets are absolute so nested windowed lists can use the same checkpoints
+			context.setCheckpoints(checkpoints);
 			LimitedMarkableContainer<CharBuffer> marked = new LimitedMarkableContainer<CharBuffer>(readable, 0);
 			marked.mark();
 			for (int i = 0; i < batchSize; i++) {
 				EOFReadableContainer<CharBuffer> eof = new EOFReadableContainer<CharBuffer>(marked);
 				CountingReadableContainerImpl<CharBuffer> counting = new CountingReadableContainerImpl<CharBuffer>(eof, offset);
 				ComplexContent content = type.newInstance();
-				String pushback = FlatBinding.this.unmarshal(thisWindow.getPath(), marked, eof, counting, record, content, otherWindows.toArray(new Window[0]));
+				String pushback = FlatBinding.this.unmarshal(context, thisWindow.getPath(), marked, eof, counting, record, content, otherWindows);
 				if (pushback == null) {
 					throw new ParseException("Can not reparse windowed elements", 0);
 				}
@@ -726,17 +1826,5 @@ public class FlatBinding extends BaseConfigurableTypeBinding<FlatBindingConfig>
 			}
 			return entries;
 		}
-		
-	}
-
-	private String formatMessages() {
-		StringBuilder builder = new StringBuilder();
-		for (ValidationMessage message : getMessages()) {
-			if (!builder.toString().isEmpty()) {
-				builder.append(",\n\t");
-			}
-			builder.append("[" + message.getSeverity() + ":" + message.getCode() + "] " + message.getMessage());
-		}
-		return builder.toString();
 	}
 }
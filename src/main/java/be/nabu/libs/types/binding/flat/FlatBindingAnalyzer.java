@@ -0,0 +1,298 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledFragment;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledRecord;
+import be.nabu.libs.validator.api.ValidationMessage.Severity;
+
+/**
+ * Checks a binding for layouts that make the parser guess: records that can not be told apart and lists that do not know where they end.
+ * For each record it estimates the worst case amount of characters that are read again, a layout that has to read up to the entire lookahead again for every record is rejected.
+ * 
+ * The estimates assume that a trial parse fails at the first identifying field (or the discriminator) and that anything that is not bounded by a length or separator reads up to the lookahead.
+ */
+public class FlatBindingAnalyzer {
+
+	public enum Problem {
+		// an optional or repeated record has no fixed or match field, it can only fail on its structure
+		NOT_IDENTIFIABLE,
+		// an optional or repeated record may accept the input of a sibling that follows it
+		OVERLAPPING_IDENTIFIERS,
+		// an unbounded list may accept the records that follow it
+		GREEDY_LIST,
+		// the separator looks like a regex but has no separator length so it is used literally
+		REGEX_SEPARATOR,
+		// the record can be longer than the parser can go back
+		EXCEEDS_LOOK_AHEAD,
+		// every instance of a record reads a lot of characters again
+		EXPENSIVE_BACKTRACKING
+	}
+	
+	// a repeated record that reads more than this times its own size again is considered expensive
+	private static final int MAX_AMPLIFICATION = 4;
+	// a separator containing escapes (other than newlines), classes, groups or quantifiers
+	private static final Pattern REGEX = Pattern.compile(".*(\\\\[^nr]|\\[.+\\]|\\(.*\\)|[^\\\\][*+?]|\\{[0-9]+(,[0-9]*)?\\}).*");
+	
+	private CompiledFlatBinding binding;
+	private List<Finding> findings = new ArrayList<Finding>();
+	private List<Estimate> estimates = new ArrayList<Estimate>();
+	
+	public FlatBindingAnalyzer(FlatBindingConfig config, ComplexType type) {
+		this(config, new CompiledFlatBinding(config, type));
+	}
+	
+	public FlatBindingAnalyzer(FlatBindingConfig config, CompiledFlatBinding binding) {
+		this.binding = binding;
+		CompiledRecord root = binding.getRoot();
+		long bound = binding.getLookAhead();
+		estimates.add(new Estimate(root, bound, -1, analyze(root, bound, config.getRepeat() != null && config.getRepeat())));
+	}
+	
+	/**
+	 * Analyzes the children of the record and returns the amount of characters that are read again for each instance of the record
+	 */
+	private long analyze(CompiledRecord record, long bound, boolean repeated) {
+		checkSeparator(record);
+		long lookAhead = binding.getLookAhead();
+		long extent = CompiledFlatBinding.getMaxExtent(record);
+		if (extent > lookAhead || (record.getMinLength() != null && record.getMinLength() > lookAhead)) {
+			add(Severity.ERROR, Problem.EXCEEDS_LOOK_AHEAD, record, "The record can be " + Math.max(extent, record.getMinLength() == null ? 0 : record.getMinLength()) + " characters long but the lookahead is only " + lookAhead);
+		}
+		long rescan = 0;
+		List<CompiledFragment> children = record.getChildren();
+		for (int i = 0; i < children.size(); i++) {
+			CompiledFragment child = children.get(i);
+			if (child instanceof CompiledField) {
+				checkSeparator(child);
+				continue;
+			}
+			CompiledRecord childRecord = (CompiledRecord) child;
+			long childBound = getBound(childRecord, bound);
+			long failure = getFailureCost(childRecord, bound);
+			boolean childRepeated = repeated || childRecord.getMaxOccurs() != 1;
+			if (isTried(childRecord)) {
+				if (!childRecord.isIdentifiable()) {
+					add(Severity.WARNING, Problem.NOT_IDENTIFIABLE, childRecord, "The record is optional or repeated but has no fixed or match field");
+				}
+				checkSiblings(childRecord, children.subList(i + 1, children.size()));
+				// every instance of the parent ends with one failed attempt of this record
+				rescan += failure;
+				if (repeated && failure >= lookAhead) {
+					add(Severity.ERROR, Problem.EXPENSIVE_BACKTRACKING, childRecord, "A failed attempt can read up to the entire lookahead (" + lookAhead + ") and it is retried for every instance of " + ParseStatistics.getName(record));
+				}
+			}
+			estimates.add(new Estimate(childRecord, childBound, failure, analyze(childRecord, childBound, childRepeated)));
+		}
+		if (repeated && bound < lookAhead && rescan > bound * MAX_AMPLIFICATION) {
+			add(Severity.WARNING, Problem.EXPENSIVE_BACKTRACKING, record, "Every instance of at most " + bound + " characters can read " + rescan + " characters again");
+		}
+		return rescan;
+	}
+	
+	/**
+	 * The input for the given siblings passes through the record first as long as the siblings in between are optional
+	 */
+	private void checkSiblings(CompiledRecord record, List<CompiledFragment> siblings) {
+		for (CompiledFragment sibling : siblings) {
+			if (!(sibling instanceof CompiledRecord)) {
+				break;
+			}
+			CompiledRecord siblingRecord = (CompiledRecord) sibling;
+			if (!record.isIdentifiable()) {
+				if (record.getMaxOccurs() == 0) {
+					add(Severity.ERROR, Problem.GREEDY_LIST, record, "The unbounded list has no identifying field and can consume " + ParseStatistics.getName(siblingRecord));
+				}
+				else {
+					add(Severity.WARNING, Problem.OVERLAPPING_IDENTIFIERS, record, "The record has no identifying field and can match the input of " + ParseStatistics.getName(siblingRecord));
+				}
+			}
+			else if (record.getDiscriminator() != null && siblingRecord.getDiscriminator() != null && record.getDiscriminator().overlaps(siblingRecord.getDiscriminator())) {
+				add(Severity.WARNING, record.getMaxOccurs() == 0 ? Problem.GREEDY_LIST : Problem.OVERLAPPING_IDENTIFIERS, record, "The identifiers " + record.getDiscriminator() 
+					+ " overlap with those of " + ParseStatistics.getName(siblingRecord) + ": " + siblingRecord.getDiscriminator());
+			}
+			if (!isTried(siblingRecord)) {
+				break;
+			}
+		}
+	}
+	
+	private void checkSeparator(CompiledFragment fragment) {
+		String separator = fragment.getFragment().getParseSeparator();
+		if (separator != null && fragment.getSeparatorLength() == null && REGEX.matcher(separator).matches()) {
+			add(Severity.WARNING, Problem.REGEX_SEPARATOR, fragment, "The separator '" + separator + "' looks like a regex but it is used literally because there is no separator length");
+		}
+	}
+	
+	/**
+	 * A record that is optional or has a variable amount of occurrences is tried until it fails
+	 */
+	private static boolean isTried(CompiledRecord record) {
+		return record.getMinOccurs() == 0 || record.getMaxOccurs() != record.getMinOccurs();
+	}
+	
+	/**
+	 * The amount of characters the fragment can span within the given bound of its parent
+	 */
+	private static long getBound(CompiledFragment fragment, long bound) {
+		long extent = CompiledFlatBinding.getMaxExtent(fragment);
+		// a delimited fragment without a length gives up if the separator is not in its buffer
+		if (extent < 0 && fragment.getParseSeparator() != null) {
+			extent = CompiledFlatBinding.DEFAULT_DELIMITED_BUFFER_SIZE + (fragment.getSeparatorLength() == null ? fragment.getParseSeparator().length() : fragment.getSeparatorLength());
+		}
+		return extent < 0 ? bound : Math.min(extent, bound);
+	}
+	
+	/**
+	 * The amount of characters that are read before a trial parse of the record fails, at the latest this is at the first identifying field
+	 */
+	private static long getFailureCost(CompiledRecord record, long bound) {
+		long recordBound = getBound(record, bound);
+		if (record.getDiscriminator() != null) {
+			return Math.min(record.getDiscriminator().getLength(), recordBound);
+		}
+		long cost = 0;
+		for (CompiledFragment child : record.getChildren()) {
+			if (child instanceof CompiledRecord && child.isIdentifiable() && ((CompiledRecord) child).getMinOccurs() > 0) {
+				return Math.min(cost + getFailureCost((CompiledRecord) child, recordBound), recordBound);
+			}
+			cost += getBound(child, recordBound);
+			if (child instanceof CompiledField && child.isIdentifiable()) {
+				return Math.min(cost, recordBound);
+			}
+		}
+		return recordBound;
+	}
+	
+	private void add(Severity severity, Problem problem, CompiledFragment fragment, String message) {
+		findings.add(new Finding(severity, problem, fragment, ParseStatistics.getName(fragment) + ": " + message));
+	}
+	
+	public List<Finding> getFindings() {
+		return findings;
+	}
+	
+	public List<Finding> getFindings(Severity severity) {
+		List<Finding> result = new ArrayList<Finding>();
+		for (Finding finding : findings) {
+			if (finding.getSeverity() == severity) {
+				result.add(finding);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * The estimates for every record, starting with the root
+	 */
+	public List<Estimate> getEstimates() {
+		return estimates;
+	}
+	
+	/**
+	 * Throws an exception if the layout has errors
+	 */
+	public void check() {
+		List<Finding> errors = getFindings(Severity.ERROR);
+		if (!errors.isEmpty()) {
+			StringBuilder builder = new StringBuilder();
+			for (Finding error : errors) {
+				builder.append("\n\t- ").append(error.getMessage());
+			}
+			throw new IllegalArgumentException("The binding for " + binding.getType() + " has a pathological layout:" + builder);
+		}
+	}
+	
+	public static class Finding {
+		private Severity severity;
+		private Problem problem;
+		private CompiledFragment fragment;
+		private String message;
+		
+		Finding(Severity severity, Problem problem, CompiledFragment fragment, String message) {
+			this.severity = severity;
+			this.problem = problem;
+			this.fragment = fragment;
+			this.message = message;
+		}
+		
+		public Severity getSeverity() {
+			return severity;
+		}
+		public Problem getProblem() {
+			return problem;
+		}
+		public CompiledFragment getFragment() {
+			return fragment;
+		}
+		public String getMessage() {
+			return message;
+		}
+		@Override
+		public String toString() {
+			return severity + " " + problem + ": " + message;
+		}
+	}
+	
+	public static class Estimate {
+		private CompiledRecord record;
+		private long extent, failureCost, rescanCost;
+		
+		Estimate(CompiledRecord record, long extent, long failureCost, long rescanCost) {
+			this.record = record;
+			this.extent = extent;
+			this.failureCost = failureCost;
+			this.rescanCost = rescanCost;
+		}
+		
+		public CompiledRecord getRecord() {
+			return record;
+		}
+		public String getName() {
+			return ParseStatistics.getName(record);
+		}
+		/**
+		 * The maximum amount of characters an instance of the record can span
+		 */
+		public long getExtent() {
+			return extent;
+		}
+		/**
+		 * The amount of characters that can be read before a trial parse of the record fails, this is -1 for the root
+		 */
+		public long getFailureCost() {
+			return failureCost;
+		}
+		/**
+		 * The amount of characters that can be read again for each instance of the record, because its optional and repeated children are tried until they fail
+		 */
+		public long getRescanCost() {
+			return rescanCost;
+		}
+		@Override
+		public String toString() {
+			return getName() + "[extent=" + extent + ", failure=" + failureCost + ", rescan=" + rescanCost + "]";
+		}
+	}
+}
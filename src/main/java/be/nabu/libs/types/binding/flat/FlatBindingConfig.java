@@ -19,6 +19,7 @@ package be.nabu.libs.types.binding.flat;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
@@ -123,8 +124,6 @@ public class FlatBindingConfig extends BindingConfig {
 		private Integer maxOccurs, minOccurs;
 		private String name, parent, complexType;
 		
-		private Boolean isIdentifiable;
-		
 		@XmlElements({
 			@XmlElement(name = "record", type = Record.class),
 			@XmlElement(name = "field", type = Field.class)
@@ -184,16 +183,12 @@ public class FlatBindingConfig extends BindingConfig {
 		@Override
 		@XmlTransient
 		public boolean isIdentifiable() {
-			if (isIdentifiable == null) {
-				isIdentifiable = false;
-				for (Fragment child : children) {
-					if (child.isIdentifiable()) {
-						isIdentifiable = true;
-						break;
-					}
+			for (Fragment child : getChildren()) {
+				if (child.isIdentifiable()) {
+					return true;
 				}
 			}
-			return isIdentifiable;
+			return false;
 		}
 
 		public Record resolve(List<Fragment> fragments) {
@@ -217,25 +212,29 @@ public class FlatBindingConfig extends BindingConfig {
 			return clone;
 		}
 
+		/**
+		 * Merges the given record into this one, the given record is not modified
+		 */
 		public void merge(Record record) {
+			List<Fragment> recordChildren = new ArrayList<Fragment>(record.getChildren());
 			// first make sure any field in the other record with the same id as a field here, overwrites it
 			for (int i = 0; i < getChildren().size(); i++) {
 				if (getChildren().get(i) instanceof Field) {
 					Field field = (Field) getChildren().get(i);
 					if (field.getId() != null) {
-						for (int j = record.getChildren().size() - 1; j >= 0; j--) {
-							if (record.getChildren().get(j) instanceof Field) {
-								Field childField = (Field) record.getChildren().get(j);
+						for (int j = recordChildren.size() - 1; j >= 0; j--) {
+							if (recordChildren.get(j) instanceof Field) {
+								Field childField = (Field) recordChildren.get(j);
 								if (field.getId().equals(childField.getId())) {
 									getChildren().set(i, childField);
-									record.getChildren().remove(j);
+									recordChildren.remove(j);
 								}
 							}
 						}
 					}
 				}
 			}
-			getChildren().addAll(record.getChildren());
+			getChildren().addAll(recordChildren);
 			if (getLength() == null) {
 				setLength(record.getLength());
 			}
@@ -298,7 +297,8 @@ public class FlatBindingConfig extends BindingConfig {
 		private String match;
 		private String pad;
 		private boolean leftAlign, canEnd;
-		private String formatter;
+		private String formatter, formatterScope;
+		private Integer impliedDecimals;
 		private Map<QName, String> otherAttributes;
 		
 		@XmlAttribute
@@ -329,6 +329,26 @@ public class FlatBindingConfig extends BindingConfig {
 		public void setFormatter(String formatter) {
 			this.formatter = formatter;
 		}
+		/**
+		 * Whether the formatter instance can be shared across threads ("shared") or each thread needs its own ("thread", the default)
+		 */
+		@XmlAttribute
+		public String getFormatterScope() {
+			return formatterScope;
+		}
+		public void setFormatterScope(String formatterScope) {
+			this.formatterScope = formatterScope;
+		}
+		/**
+		 * The amount of decimals that are implied in the value, it has no decimal point, e.g. "12345" with 2 implied decimals is 123.45
+		 */
+		@XmlAttribute
+		public Integer getImpliedDecimals() {
+			return impliedDecimals;
+		}
+		public void setImpliedDecimals(Integer impliedDecimals) {
+			this.impliedDecimals = impliedDecimals;
+		}
 		@XmlAnyAttribute
 		public Map<QName, String> getOtherAttributes() {
 			return otherAttributes;
@@ -466,6 +486,15 @@ public class FlatBindingConfig extends BindingConfig {
 			throw new RuntimeException(e);
 		}
 	}
+	public void save(OutputStream output) throws IOException {
+		try {
+			JAXBContext context = JAXBContext.newInstance(FlatBindingConfig.class, Record.class, Field.class);
+			context.createMarshaller().marshal(this, output);
+		}
+		catch (JAXBException e) {
+			throw new RuntimeException(e);
+		}
+	}
 	@Override
 	public String getComplexType() {
 		String complexType = super.getComplexType();
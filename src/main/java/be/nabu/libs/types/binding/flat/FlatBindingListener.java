@@ -0,0 +1,26 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+/**
+ * Receives the statistics of every parse that is done by a binding. The statistics are only collected if a listener is set, without one the parser only does a null check per record.
+ * The listener is called on the thread that did the parse (successful or not), it can be called concurrently and should not throw exceptions.
+ */
+public interface FlatBindingListener {
+	public void parsed(FlatBinding binding, ParseStatistics statistics);
+}
@@ -0,0 +1,183 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import be.nabu.libs.types.binding.flat.ParseStatistics.RecordStatistics;
+
+/**
+ * Aggregates the statistics of all the parses of one or more bindings, it can be registered as an MXBean to see which bindings and records are hot:
+ * 
+ * FlatBindingMetrics metrics = new FlatBindingMetrics();
+ * binding.setListener(metrics);
+ * metrics.register("invoices");
+ */
+public class FlatBindingMetrics implements FlatBindingListener, FlatBindingMetricsMXBean {
+
+	public static final String DOMAIN = "be.nabu.libs.types.binding.flat";
+	// the counters that are kept per record
+	private static final int MATCHED = 0, FAILED = 1, RESETS = 2, CHARACTERS = 3;
+	
+	private LongAdder parses = new LongAdder(), failedParses = new LongAdder(), characters = new LongAdder(), parseTime = new LongAdder(),
+		formatterTime = new LongAdder(), formatterCalls = new LongAdder(), pushback = new LongAdder();
+	private AtomicLong maxRecordLength = new AtomicLong(), lookAhead = new AtomicLong();
+	private ConcurrentMap<String, LongAdder[]> records = new ConcurrentHashMap<String, LongAdder[]>();
+	private ObjectName name;
+	
+	@Override
+	public void parsed(FlatBinding binding, ParseStatistics statistics) {
+		parses.increment();
+		if (!statistics.isSuccessful()) {
+			failedParses.increment();
+		}
+		characters.add(statistics.getCharacters());
+		parseTime.add(statistics.getDuration());
+		formatterTime.add(statistics.getFormatterTime());
+		formatterCalls.add(statistics.getFormatterCalls());
+		pushback.add(statistics.getPushback());
+		max(maxRecordLength, statistics.getMaxRecordLength());
+		max(lookAhead, statistics.getLookAhead());
+		for (RecordStatistics record : statistics.getRecords()) {
+			LongAdder [] counters = records.get(record.getName());
+			if (counters == null) {
+				records.putIfAbsent(record.getName(), new LongAdder[] { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() });
+				counters = records.get(record.getName());
+			}
+			counters[MATCHED].add(record.getMatched());
+			counters[FAILED].add(record.getFailed());
+			counters[RESETS].add(record.getResets());
+			counters[CHARACTERS].add(record.getCharacters());
+		}
+	}
+	
+	private static void max(AtomicLong value, long candidate) {
+		long current = value.get();
+		while (candidate > current && !value.compareAndSet(current, candidate)) {
+			current = value.get();
+		}
+	}
+	
+	/**
+	 * Registers the metrics with the platform MBean server under the given name
+	 */
+	public synchronized ObjectName register(String name) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=FlatBinding,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.name = objectName;
+			return objectName;
+		}
+		catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public synchronized void unregister() {
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+				name = null;
+			}
+			catch (JMException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	@Override
+	public long getParses() {
+		return parses.sum();
+	}
+	@Override
+	public long getFailedParses() {
+		return failedParses.sum();
+	}
+	@Override
+	public long getCharacters() {
+		return characters.sum();
+	}
+	@Override
+	public long getParseTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(parseTime.sum());
+	}
+	@Override
+	public long getFormatterTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(formatterTime.sum());
+	}
+	@Override
+	public long getFormatterCalls() {
+		return formatterCalls.sum();
+	}
+	@Override
+	public long getPushback() {
+		return pushback.sum();
+	}
+	@Override
+	public long getMaxRecordLength() {
+		return maxRecordLength.get();
+	}
+	@Override
+	public long getLookAhead() {
+		return lookAhead.get();
+	}
+	@Override
+	public Map<String, Long> getMatchedRecords() {
+		return getCounts(MATCHED);
+	}
+	@Override
+	public Map<String, Long> getFailedRecords() {
+		return getCounts(FAILED);
+	}
+	@Override
+	public Map<String, Long> getRecordResets() {
+		return getCounts(RESETS);
+	}
+	@Override
+	public Map<String, Long> getRecordCharacters() {
+		return getCounts(CHARACTERS);
+	}
+	
+	private Map<String, Long> getCounts(int counter) {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder[]> entry : records.entrySet()) {
+			result.put(entry.getKey(), entry.getValue()[counter].sum());
+		}
+		return result;
+	}
+	
+	@Override
+	public void reset() {
+		for (LongAdder adder : new LongAdder[] { parses, failedParses, characters, parseTime, formatterTime, formatterCalls, pushback }) {
+			adder.reset();
+		}
+		maxRecordLength.set(0);
+		lookAhead.set(0);
+		records.clear();
+	}
+}
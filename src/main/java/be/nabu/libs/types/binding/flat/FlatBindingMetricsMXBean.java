@@ -0,0 +1,40 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.Map;
+
+/**
+ * The metrics that are exposed through JMX, the record maps are keyed on the name of the record
+ */
+public interface FlatBindingMetricsMXBean {
+	public long getParses();
+	public long getFailedParses();
+	public long getCharacters();
+	public long getParseTimeMillis();
+	public long getFormatterTimeMillis();
+	public long getFormatterCalls();
+	public long getPushback();
+	public long getMaxRecordLength();
+	public long getLookAhead();
+	public Map<String, Long> getMatchedRecords();
+	public Map<String, Long> getFailedRecords();
+	public Map<String, Long> getRecordResets();
+	public Map<String, Long> getRecordCharacters();
+	public void reset();
+}
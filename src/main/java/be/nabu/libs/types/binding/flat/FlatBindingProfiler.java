@@ -0,0 +1,282 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import be.nabu.libs.types.binding.flat.ParseStatistics.Backtrack;
+import be.nabu.libs.types.binding.flat.ParseStatistics.RecordStatistics;
+
+/**
+ * Aggregates the backtracks of profiled parses into a report of the fragments that cause the most characters to be read again.
+ * A fragment with a high ratio of wasted to useful characters is usually tried (and fails) for a lot of records, moving it down or giving it a fixed identifier helps.
+ * 
+ * FlatBindingProfiler profiler = new FlatBindingProfiler();
+ * binding.setListener(profiler);
+ * binding.setProfiling(true);
+ * ...
+ * System.out.println(profiler.toText(10));
+ */
+public class FlatBindingProfiler implements FlatBindingListener {
+
+	private static final int MAX_POSITIONS = 10;
+	
+	private long parses, characters, wasted, pushback;
+	private Map<String, FragmentCost> costs = new HashMap<String, FragmentCost>();
+	
+	@Override
+	public synchronized void parsed(FlatBinding binding, ParseStatistics statistics) {
+		if (!statistics.isProfiled()) {
+			return;
+		}
+		parses++;
+		characters += statistics.getCharacters();
+		wasted += statistics.getWasted();
+		for (Backtrack backtrack : statistics.getBacktracks()) {
+			FragmentCost cost = getCost(backtrack.getName());
+			cost.failures += backtrack.getFailures();
+			cost.wasted += backtrack.getWasted();
+			cost.pushback += backtrack.getPushback();
+			pushback += backtrack.getPushback();
+			for (long position : backtrack.getPositions()) {
+				if (cost.positions.size() < MAX_POSITIONS) {
+					cost.positions.add(position);
+				}
+			}
+			for (Map.Entry<String, Long> cause : backtrack.getCauses().entrySet()) {
+				Long current = cost.causes.get(cause.getKey());
+				cost.causes.put(cause.getKey(), current == null ? cause.getValue() : current + cause.getValue());
+			}
+		}
+		for (RecordStatistics record : statistics.getRecords()) {
+			getCost(record.getName()).useful += record.getCharacters();
+		}
+	}
+	
+	private FragmentCost getCost(String name) {
+		FragmentCost cost = costs.get(name);
+		if (cost == null) {
+			cost = new FragmentCost(name);
+			costs.put(name, cost);
+		}
+		return cost;
+	}
+	
+	/**
+	 * The fragments that caused characters to be read again, the most expensive first
+	 */
+	public synchronized List<FragmentCost> getCosts() {
+		List<FragmentCost> list = new ArrayList<FragmentCost>();
+		for (FragmentCost cost : costs.values()) {
+			if (cost.getCost() > 0) {
+				list.add(cost.copy());
+			}
+		}
+		Collections.sort(list, new Comparator<FragmentCost>() {
+			@Override
+			public int compare(FragmentCost o1, FragmentCost o2) {
+				return Long.compare(o2.getCost(), o1.getCost());
+			}
+		});
+		return list;
+	}
+	
+	public synchronized long getParses() {
+		return parses;
+	}
+	/**
+	 * The amount of characters that were consumed by the parses
+	 */
+	public synchronized long getCharacters() {
+		return characters;
+	}
+	/**
+	 * The amount of characters that were read by failed trial parses
+	 */
+	public synchronized long getWasted() {
+		return wasted;
+	}
+	/**
+	 * The amount of characters that were pushed back to be read again
+	 */
+	public synchronized long getPushback() {
+		return pushback;
+	}
+	
+	public synchronized void reset() {
+		parses = 0;
+		characters = 0;
+		wasted = 0;
+		pushback = 0;
+		costs.clear();
+	}
+	
+	/**
+	 * A readable report of the most expensive fragments
+	 */
+	public String toText(int limit) {
+		List<FragmentCost> costs = getCosts();
+		StringBuilder builder = new StringBuilder();
+		long characters = getCharacters();
+		builder.append(String.format("%d parses, %d characters, %d wasted (%.2f%%), %d pushed back%n", getParses(), characters, getWasted(), 
+			characters == 0 ? 0d : 100d * getWasted() / characters, getPushback()));
+		builder.append(String.format("%-30s %10s %12s %12s %12s %8s  %s%n", "fragment", "failures", "wasted", "pushback", "useful", "ratio", "positions"));
+		for (FragmentCost cost : costs.subList(0, Math.min(limit, costs.size()))) {
+			StringBuilder positions = new StringBuilder();
+			for (Long position : cost.getPositions()) {
+				positions.append(positions.length() == 0 ? "" : ", ").append(position);
+			}
+			builder.append(String.format("%-30s %10d %12d %12d %12d %8s  %s%n", cost.getName(), cost.getFailures(), cost.getWasted(), cost.getPushback(), cost.getUseful(), 
+				cost.getUseful() == 0 ? "-" : String.format("%.2f", cost.getRatio()), positions));
+			for (Map.Entry<String, Long> cause : cost.getCauses().entrySet()) {
+				builder.append(String.format("    failed on %s: %d%n", cause.getKey(), cause.getValue()));
+			}
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * The same report as json
+	 */
+	public String toJSON(int limit) {
+		List<FragmentCost> costs = getCosts();
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\"parses\": ").append(getParses())
+			.append(", \"characters\": ").append(getCharacters())
+			.append(", \"wasted\": ").append(getWasted())
+			.append(", \"pushback\": ").append(getPushback())
+			.append(", \"fragments\": [");
+		for (int i = 0; i < Math.min(limit, costs.size()); i++) {
+			FragmentCost cost = costs.get(i);
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append("{\"name\": ").append(quote(cost.getName()))
+				.append(", \"failures\": ").append(cost.getFailures())
+				.append(", \"wasted\": ").append(cost.getWasted())
+				.append(", \"pushback\": ").append(cost.getPushback())
+				.append(", \"useful\": ").append(cost.getUseful())
+				.append(", \"ratio\": ").append(cost.getUseful() == 0 ? "null" : Double.toString(cost.getRatio()))
+				.append(", \"positions\": ").append(cost.getPositions())
+				.append(", \"causes\": {");
+			boolean first = true;
+			for (Map.Entry<String, Long> cause : cost.getCauses().entrySet()) {
+				builder.append(first ? "" : ", ").append(quote(cause.getKey())).append(": ").append(cause.getValue());
+				first = false;
+			}
+			builder.append("}}");
+		}
+		return builder.append("]}").toString();
+	}
+	
+	private static String quote(String value) {
+		StringBuilder builder = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			if (character == '"' || character == '\\') {
+				builder.append('\\').append(character);
+			}
+			else if (character < 0x20) {
+				builder.append(String.format("\\u%04x", (int) character));
+			}
+			else {
+				builder.append(character);
+			}
+		}
+		return builder.append('"').toString();
+	}
+	
+	@Override
+	public String toString() {
+		return toText(Integer.MAX_VALUE);
+	}
+	
+	public static class FragmentCost {
+		private String name;
+		private long failures, wasted, pushback, useful;
+		private List<Long> positions = new ArrayList<Long>();
+		private Map<String, Long> causes = new TreeMap<String, Long>();
+		
+		FragmentCost(String name) {
+			this.name = name;
+		}
+		
+		private FragmentCost copy() {
+			FragmentCost copy = new FragmentCost(name);
+			copy.failures = failures;
+			copy.wasted = wasted;
+			copy.pushback = pushback;
+			copy.useful = useful;
+			copy.positions.addAll(positions);
+			copy.causes.putAll(causes);
+			return copy;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		public long getFailures() {
+			return failures;
+		}
+		/**
+		 * The characters read by failed trial parses of this fragment
+		 */
+		public long getWasted() {
+			return wasted;
+		}
+		/**
+		 * The characters this fragment read too much and pushed back
+		 */
+		public long getPushback() {
+			return pushback;
+		}
+		/**
+		 * The characters of the records that were matched by this fragment
+		 */
+		public long getUseful() {
+			return useful;
+		}
+		/**
+		 * The amount of characters that were read again for every useful character
+		 */
+		public double getRatio() {
+			return (double) getCost() / useful;
+		}
+		public long getCost() {
+			return wasted + pushback;
+		}
+		/**
+		 * The offsets of the first failed trial parses (in the file they occurred in)
+		 */
+		public List<Long> getPositions() {
+			return positions;
+		}
+		/**
+		 * The nested fragments that made the trial parses fail
+		 */
+		public Map<String, Long> getCauses() {
+			return causes;
+		}
+	}
+}
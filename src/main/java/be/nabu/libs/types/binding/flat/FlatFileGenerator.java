@@ -0,0 +1,410 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.converter.api.Converter;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledFragment;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledRecord;
+import be.nabu.utils.io.IOUtils;
+
+/**
+ * Generates random files that are valid for a binding, for example to load test or benchmark it.
+ * The generator works on the compiled binding so named and parent records are resolved the same way as when parsing. It honors:
+ * 		- fixed values and match regexes
+ * 		- the length, pad and alignment of fixed length fields and the length of delimited records
+ * 		- separators, no value contains a separator that would end it prematurely
+ * 		- the min and max occurs of records
+ * 		- the type (and formatter) of mapped fields
+ * The file is written as it is generated so the memory usage does not depend on its size.
+ * The first unbounded list keeps growing until the requested size is reached, for a binding with repeat="true" the root is repeated instead.
+ * Optionally errors can be injected in the fields to test failing parses, note that a corrupted value might still be valid for a permissive field.
+ * A generator is not thread safe, the same seed always generates the same file.
+ */
+public class FlatFileGenerator {
+
+	private static final int MAX_ATTEMPTS = 100;
+	private static final int MARSHAL_BUFFER_SIZE = 8192;
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final String ALPHANUMERIC = LETTERS + "0123456789";
+	// 2014/01/01 00:00:00 UTC
+	private static final long EPOCH = 1388534400000l;
+	private static final long DAY = 86400000l;
+	
+	private FlatBindingConfig config;
+	private CompiledFlatBinding binding;
+	private Charset charset;
+	private long seed;
+	private double errorRate;
+	private int unboundedOccurs = 10;
+	private Converter converter = ConverterFactory.getInstance().getConverter();
+	private Map<String, Pattern> separatorPatterns = new HashMap<String, Pattern>();
+	
+	// the state of the current generation
+	private Random random;
+	private FlatWriter writer;
+	private long size, errors;
+	private CompiledRecord sizedRecord;
+	private List<String> separators = new ArrayList<String>();
+	
+	public FlatFileGenerator(FlatBindingConfig config, ComplexType type, Charset charset) {
+		this.config = config;
+		this.binding = new CompiledFlatBinding(config, type);
+		this.charset = charset;
+	}
+	
+	/**
+	 * Generates a file of at least the given amount of characters (unless the binding has no unbounded list and does not repeat), the amount of characters written is returned
+	 */
+	public long generate(OutputStream output, long size) throws IOException {
+		this.random = new Random(seed);
+		this.writer = new FlatWriter(IOUtils.wrapWritable(IOUtils.wrap(output), charset), MARSHAL_BUFFER_SIZE);
+		this.size = size;
+		this.errors = 0;
+		this.sizedRecord = null;
+		this.separators.clear();
+		if (config.getRepeat() != null && config.getRepeat()) {
+			// a repeating root is the only one that is sized
+			sizedRecord = binding.getRoot();
+			do {
+				generateInstance(binding.getRoot());
+			}
+			while (writer.getWritten() < size);
+		}
+		else {
+			generateInstance(binding.getRoot());
+		}
+		writer.flush();
+		return writer.getWritten();
+	}
+
+	/**
+	 * The amount of values that were corrupted during the last generation
+	 */
+	public long getErrors() {
+		return errors;
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * The chance (between 0 and 1) that a generated value is corrupted
+	 */
+	public double getErrorRate() {
+		return errorRate;
+	}
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * The maximum amount of records that are generated for an unbounded list that is not used to reach the requested size
+	 */
+	public int getUnboundedOccurs() {
+		return unboundedOccurs;
+	}
+	public void setUnboundedOccurs(int unboundedOccurs) {
+		this.unboundedOccurs = unboundedOccurs;
+	}
+
+	private void generate(CompiledRecord record) throws IOException {
+		int minOccurs = record.getMinOccurs();
+		int maxOccurs = record.getMaxOccurs();
+		if (maxOccurs == 0 && sizedRecord == null) {
+			sizedRecord = record;
+			for (int i = 0; i < minOccurs || writer.getWritten() < size; i++) {
+				generateInstance(record);
+			}
+		}
+		else {
+			if (maxOccurs == 0) {
+				maxOccurs = Math.max(minOccurs, unboundedOccurs);
+			}
+			int occurs = minOccurs + random.nextInt(Math.max(0, maxOccurs - minOccurs) + 1);
+			for (int i = 0; i < occurs; i++) {
+				generateInstance(record);
+			}
+		}
+	}
+	
+	private void generateInstance(CompiledRecord record) throws IOException {
+		if (record.getParseSeparator() != null) {
+			separators.add(record.getParseSeparator());
+		}
+		long start = writer.getWritten();
+		// a delimited record with a length has to be filled exactly
+		if (record.getLength() != null && record.getFormatSeparator() != null && record.getSlicedLength() == null && hasOnlyFields(record)) {
+			List<String> values = newValues(record);
+			for (int i = 0; i < values.size(); i++) {
+				write((CompiledField) record.getChildren().get(i), values.get(i));
+			}
+		}
+		else {
+			for (CompiledFragment child : record.getChildren()) {
+				if (child instanceof CompiledRecord) {
+					generate((CompiledRecord) child);
+				}
+				else {
+					write((CompiledField) child, newValue(record, (CompiledField) child));
+				}
+			}
+		}
+		if (record.getParseSeparator() != null) {
+			separators.remove(separators.size() - 1);
+		}
+		// the same as the marshaller
+		if (record.getFormatSeparator() != null) {
+			writer.write(record.getFormatSeparator());
+		}
+		else if (record.getLength() != null) {
+			writer.fill(' ', record.getLength() - (writer.getWritten() - start));
+		}
+	}
+	
+	private void write(CompiledField field, String value) throws IOException {
+		if (field.getLength() != null) {
+			writer.write(value, field);
+		}
+		else {
+			writer.write(value);
+		}
+		if (field.getFormatSeparator() != null) {
+			writer.write(field.getFormatSeparator());
+		}
+	}
+	
+	private static boolean hasOnlyFields(CompiledRecord record) {
+		for (CompiledFragment child : record.getChildren()) {
+			if (!(child instanceof CompiledField)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Generates the values for a record and stretches or shrinks the free text fields so the record has the required length
+	 */
+	private List<String> newValues(CompiledRecord record) {
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			List<String> values = new ArrayList<String>();
+			List<Integer> free = new ArrayList<Integer>();
+			long length = 0;
+			for (CompiledFragment child : record.getChildren()) {
+				CompiledField field = (CompiledField) child;
+				String value = newValue(record, field);
+				if (isFree(record, field)) {
+					free.add(values.size());
+				}
+				values.add(value);
+				length += field.getLength() != null ? field.getLength() : value.length();
+				if (field.getFormatSeparator() != null) {
+					length += field.getFormatSeparator().length();
+				}
+			}
+			long difference = record.getLength() - length;
+			for (int i = free.size() - 1; i >= 0 && difference != 0; i--) {
+				CompiledField field = (CompiledField) record.getChildren().get(free.get(i));
+				String value = values.get(free.get(i));
+				int target = (int) Math.max(Math.max(1, field.getMinLength() == null ? 1 : field.getMinLength()), value.length() + difference);
+				if (field.getMaxLength() != null) {
+					target = Math.min(target, field.getMaxLength());
+				}
+				String adjusted = target <= value.length() ? value.substring(0, target) : value + newText(target - value.length(), ALPHANUMERIC);
+				difference -= adjusted.length() - value.length();
+				values.set(free.get(i), adjusted);
+			}
+			if (difference == 0) {
+				return values;
+			}
+		}
+		throw new IllegalArgumentException("Could not generate a record with length " + record.getLength() + ": " + record);
+	}
+	
+	/**
+	 * A free field contains plain text that can be changed without affecting the validity of the record
+	 */
+	private boolean isFree(CompiledRecord record, CompiledField field) {
+		return field.getFixed() == null && field.getPattern() == null && field.getFormatter() == null && field.getLength() == null && String.class.equals(getInstanceClass(record, field));
+	}
+	
+	private String newValue(CompiledRecord record, CompiledField field) {
+		String value = null;
+		if (field.getFixed() != null) {
+			value = field.getFixed();
+		}
+		else {
+			for (int attempt = 0; attempt < MAX_ATTEMPTS && value == null; attempt++) {
+				String candidate = field.getPattern() != null
+					? new RegexGenerator(field.getMatch(), random).generate()
+					: newValue(field, getInstanceClass(record, field));
+				if (isValid(field, candidate)) {
+					value = candidate;
+				}
+			}
+			if (value == null) {
+				throw new IllegalArgumentException("Could not generate a valid value for: " + field);
+			}
+		}
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			errors++;
+			value = corrupt(field, value);
+		}
+		return value;
+	}
+	
+	private String newValue(CompiledField field, Class<?> instanceClass) {
+		int maxLength = field.getLength() != null ? field.getLength() : (field.getMaxLength() != null ? field.getMaxLength() : 12);
+		int minLength = Math.min(maxLength, field.getMinLength() == null ? 1 : Math.max(1, field.getMinLength()));
+		Object object;
+		if (Integer.class.equals(instanceClass) || Short.class.equals(instanceClass) || Byte.class.equals(instanceClass)) {
+			object = random.nextInt((int) Math.pow(10, Math.min(maxLength, Byte.class.equals(instanceClass) ? 2 : (Short.class.equals(instanceClass) ? 4 : 9))));
+		}
+		else if (Long.class.equals(instanceClass) || BigInteger.class.equals(instanceClass)) {
+			object = (long) (random.nextDouble() * Math.pow(10, Math.min(maxLength, 18)));
+		}
+		else if (Double.class.equals(instanceClass) || Float.class.equals(instanceClass) || BigDecimal.class.equals(instanceClass)) {
+			object = BigDecimal.valueOf(random.nextInt((int) Math.pow(10, Math.max(1, Math.min(maxLength - 1, 7)))), 2);
+		}
+		else if (Boolean.class.equals(instanceClass)) {
+			object = random.nextBoolean();
+		}
+		else if (Date.class.equals(instanceClass)) {
+			object = new Date(EPOCH + random.nextInt(3650) * DAY + random.nextInt(86400) * 1000l);
+		}
+		else if (instanceClass != null && instanceClass.isEnum()) {
+			Object [] constants = instanceClass.getEnumConstants();
+			object = constants[random.nextInt(constants.length)];
+		}
+		// it starts with a letter so it does not accidently match a numeric identifier
+		else {
+			int length = minLength + random.nextInt(maxLength - minLength + 1);
+			return newText(1, LETTERS) + newText(length - 1, ALPHANUMERIC);
+		}
+		if (field.getFormatter() != null) {
+			return field.getFormatter().marshal(object instanceof BigDecimal && !BigDecimal.class.equals(instanceClass) ? converter.convert(object, instanceClass) : object);
+		}
+		// the same as the marshaller
+		else if (object instanceof Number && field.getImpliedDecimals() != null) {
+			return FlatBinding.toImpliedDecimals(field, new BigDecimal(object.toString()));
+		}
+		return converter.convert(object, String.class);
+	}
+	
+	private String newText(long length, String characters) {
+		StringBuilder builder = new StringBuilder();
+		for (long i = 0; i < length; i++) {
+			builder.append(characters.charAt(random.nextInt(characters.length())));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Checks that the parser would read the value back as it is
+	 */
+	private boolean isValid(CompiledField field, String value) {
+		if (!field.matches(value)) {
+			return false;
+		}
+		if ((field.getMinLength() != null && value.length() < field.getMinLength()) || (field.getMaxLength() != null && value.length() > field.getMaxLength())) {
+			return false;
+		}
+		if (field.getLength() != null) {
+			if (value.length() > field.getLength() || !FlatBinding.trim(field, pad(field, value)).equals(value)) {
+				return false;
+			}
+		}
+		else if (field.getParseSeparator() != null && contains(value, field.getParseSeparator(), field.getSeparatorLength() != null)) {
+			return false;
+		}
+		for (String separator : separators) {
+			if (contains(value, separator, false)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean contains(String value, String separator, boolean regex) {
+		if (!regex) {
+			return value.contains(separator);
+		}
+		Pattern pattern = separatorPatterns.get(separator);
+		if (pattern == null) {
+			pattern = Pattern.compile(separator);
+			separatorPatterns.put(separator, pattern);
+		}
+		return pattern.matcher(value).find();
+	}
+	
+	/**
+	 * Pads the value the same way the writer does
+	 */
+	private static String pad(CompiledField field, String value) {
+		char [] padRun = field.getPadRun();
+		int missing = field.getLength() - value.length();
+		if (padRun == null || missing == 0) {
+			return value;
+		}
+		else if (field.isLeftAlign()) {
+			return value + new String(padRun, 0, missing);
+		}
+		int padLength = field.getPad().length();
+		return new String(padRun, (padLength - (missing % padLength)) % padLength, missing) + value;
+	}
+	
+	/**
+	 * Fixed values are changed, other values get characters that are unlikely to be valid, a delimited value can get an additional separator
+	 */
+	private String corrupt(CompiledField field, String value) {
+		if (field.getFixed() != null) {
+			return value.isEmpty() ? "~" : "~" + value.substring(1);
+		}
+		else if (field.getLength() == null && field.getFormatSeparator() != null && random.nextBoolean()) {
+			return value + field.getFormatSeparator() + value;
+		}
+		return "~" + value;
+	}
+	
+	private static Class<?> getInstanceClass(CompiledRecord record, CompiledField field) {
+		Element<?> element = field.getMap() == null || record.getType() == null ? null : record.getType().get(field.getMap());
+		return element != null && element.getType() instanceof SimpleType ? ((SimpleType<?>) element.getType()).getInstanceClass() : String.class;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.validator.api.ValidationMessage;
+
+/**
+ * Parses a flat file in the background and hands out the records at the given path one at a time, they are not added to their parent.
+ * Only a limited amount of parsed records is buffered so the memory usage does not depend on the size of the file.
+ * The records that are not streamed (e.g. a header or footer) are available in the root content, it is complete once all records have been read.
+ * 
+ * The reader should always be closed, this stops the background parse and releases the resource. A reader that is abandoned without closing it stops the parse once it is garbage collected.
+ * 
+ * Records are handed out as soon as they are parsed, they can not be taken back. If the file turns out to be invalid further on, the iterator throws an exception at that point.
+ * This also means the streamed records should not be in a record that can be backtracked (e.g. an optional record or one of several alternatives): if such a record fails, the records it already handed out are not valid.
+ */
+public class FlatRecordReader implements Iterator<ComplexContent>, Closeable {
+
+	private static final Object END = new Object();
+
+	private Parser parser;
+	private Thread thread;
+	private Object next;
+	private long offset = -1;
+
+	FlatRecordReader(FlatBinding binding, ReadableResource resource, ComplexType type, String path, int bufferSize) {
+		this.parser = new Parser(this, binding, binding.newContext(resource), type.newInstance(), type.getName() + "/" + path, bufferSize);
+		this.thread = new Thread(parser, "flat-reader-" + path);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = parser.queue.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		if (next instanceof Exception) {
+			Exception exception = (Exception) next;
+			next = END;
+			throw new RuntimeException("Could not parse the file: " + parser.context.formatMessages(), exception);
+		}
+		return next != END;
+	}
+
+	@Override
+	public ComplexContent next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Record record = (Record) next;
+		next = null;
+		offset = record.offset;
+		return record.content;
+	}
+
+	/**
+	 * The character offset in the source where the last returned record starts
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The root content without the streamed records, any records before the streamed ones (e.g. a header) are available once the first record is returned
+	 */
+	public ComplexContent getContent() {
+		return parser.content;
+	}
+
+	/**
+	 * The validation messages of the parse, only reliable once all the records are read
+	 */
+	public List<ValidationMessage> getMessages() {
+		return parser.context.getDiagnostics().getMessages();
+	}
+
+	/**
+	 * The records as a stream, closing the stream closes the reader
+	 */
+	public Stream<ComplexContent> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Whether the background parse is still running
+	 */
+	boolean isParsing() {
+		return thread.isAlive();
+	}
+
+	@Override
+	public void close() {
+		parser.closed = true;
+		thread.interrupt();
+		parser.queue.clear();
+		next = END;
+	}
+
+	/**
+	 * The background parse, it only has a weak reference to the reader so it can stop when the reader is abandoned
+	 */
+	private static class Parser implements Runnable {
+		private BlockingQueue<Object> queue;
+		private WeakReference<FlatRecordReader> reader;
+		private FlatBinding binding;
+		private ParseContext context;
+		private ComplexContent content;
+		private volatile boolean closed;
+
+		Parser(FlatRecordReader reader, FlatBinding binding, ParseContext context, ComplexContent content, String path, int bufferSize) {
+			this.queue = new ArrayBlockingQueue<Object>(bufferSize);
+			this.reader = new WeakReference<FlatRecordReader>(reader);
+			this.binding = binding;
+			this.context = context;
+			this.content = content;
+			context.setRecordHandler(path, new ParseContext.RecordHandler() {
+				@Override
+				public void handle(ComplexContent content, long offset) throws IOException {
+					try {
+						Record record = new Record(content, offset);
+						while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+							if (isAbandoned()) {
+								throw new InterruptedIOException("The reader was closed");
+							}
+						}
+					}
+					catch (InterruptedException e) {
+						throw new InterruptedIOException("The reader was closed");
+					}
+				}
+			});
+		}
+
+		private boolean isAbandoned() {
+			return closed || reader.get() == null;
+		}
+
+		@Override
+		public void run() {
+			Object result = END;
+			try {
+				binding.unmarshal(context, content, new Window[0]);
+			}
+			catch (Exception e) {
+				result = e;
+			}
+			try {
+				// if the reader is closed, nobody is waiting for the result anymore
+				while (!isAbandoned() && !queue.offer(result, 100, TimeUnit.MILLISECONDS));
+			}
+			catch (InterruptedException e) {
+				// closed
+			}
+		}
+	}
+
+	private static class Record {
+		private ComplexContent content;
+		private long offset;
+
+		Record(ComplexContent content, long offset) {
+			this.content = content;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Collects the marshalled characters in a reusable buffer which is written (and encoded) in large batches.
+ * It keeps track of the amount of characters written so the length of a record can be calculated without wrapping the output.
+ * The buffer is written to one of:
+ * 		- a writable container
+ * 		- a file channel at a given position, this allows multiple writers to write to different parts of the same file
+ * 		- nothing, the buffer simply grows, this is used to marshal a chunk of records that is written later on
+ */
+class FlatWriter {
+
+	private WritableContainer<CharBuffer> output;
+	private FileChannel channel;
+	private Charset charset;
+	private long channelPosition;
+	private char [] buffer;
+	private int position;
+	private long written;
+
+	FlatWriter(WritableContainer<CharBuffer> output, int size) {
+		this.output = output;
+		this.buffer = new char[size];
+	}
+	
+	FlatWriter(FileChannel channel, long channelPosition, Charset charset, int size) {
+		this.channel = channel;
+		this.channelPosition = channelPosition;
+		this.charset = charset;
+		this.buffer = new char[size];
+	}
+	
+	FlatWriter(int size) {
+		this.buffer = new char[size];
+	}
+
+	/**
+	 * The total amount of characters written so far
+	 */
+	long getWritten() {
+		return written;
+	}
+
+	void write(String value) throws IOException {
+		write(value, 0, value.length());
+	}
+
+	void write(String value, int start, int end) throws IOException {
+		while (start < end) {
+			if (position == buffer.length) {
+				flushBuffer();
+			}
+			int amount = Math.min(end - start, buffer.length - position);
+			value.getChars(start, start + amount, buffer, position);
+			position += amount;
+			written += amount;
+			start += amount;
+		}
+	}
+
+	void write(char [] chars, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (position == buffer.length) {
+				flushBuffer();
+			}
+			int amount = Math.min(length, buffer.length - position);
+			System.arraycopy(chars, offset, buffer, position, amount);
+			position += amount;
+			written += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	void fill(char character, long amount) throws IOException {
+		while (amount > 0) {
+			if (position == buffer.length) {
+				flushBuffer();
+			}
+			int chunk = (int) Math.min(amount, buffer.length - position);
+			for (int i = 0; i < chunk; i++) {
+				buffer[position++] = character;
+			}
+			written += chunk;
+			amount -= chunk;
+		}
+	}
+
+	/**
+	 * Writes the value padded or truncated to the length of the field, this gives the same result as repeatedly adding the pad to the value and truncating the result
+	 */
+	void write(String value, CompiledField field) throws IOException {
+		int length = field.getLength();
+		int valueLength = value.length();
+		char [] padRun = field.getPadRun();
+		if (valueLength >= length || padRun == null) {
+			if (valueLength <= length) {
+				write(value);
+			}
+			else if (field.isLeftAlign()) {
+				write(value, 0, length);
+			}
+			else {
+				write(value, valueLength - length, valueLength);
+			}
+		}
+		else if (field.isLeftAlign()) {
+			write(value);
+			write(padRun, 0, length - valueLength);
+		}
+		else {
+			// when prepending, the pad run can start in the middle of a multi character pad
+			int padLength = field.getPad().length();
+			int missing = length - valueLength;
+			write(padRun, (padLength - (missing % padLength)) % padLength, missing);
+			write(value);
+		}
+	}
+
+	/**
+	 * Writes everything that was buffered in the given writer
+	 */
+	void write(FlatWriter writer) throws IOException {
+		write(writer.buffer, 0, writer.position);
+	}
+	
+	boolean isPositional() {
+		return channel != null;
+	}
+	
+	/**
+	 * Whether this writer only buffers in memory, e.g. for a chunk that is marshalled on the executor
+	 */
+	boolean isBuffer() {
+		return channel == null && output == null;
+	}
+	
+	FileChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Writes everything that is buffered and returns the position in the channel where the next write will be
+	 */
+	long getChannelPosition() throws IOException {
+		flushBuffer();
+		return channelPosition;
+	}
+	
+	/**
+	 * Moves the position in the channel (e.g. because someone else wrote that part)
+	 */
+	void skip(long bytes) throws IOException {
+		flushBuffer();
+		channelPosition += bytes;
+	}
+	
+	/**
+	 * Encodes the buffer and writes it at the given position in the channel, the amount of bytes written is returned
+	 */
+	long writeTo(FileChannel channel, long position, Charset charset) throws IOException {
+		ByteBuffer bytes = charset.encode(java.nio.CharBuffer.wrap(buffer, 0, this.position));
+		long amount = bytes.remaining();
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+		return amount;
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (channel != null) {
+			// we can't encode half a surrogate pair, keep it for the next flush
+			int held = position > 0 && Character.isHighSurrogate(buffer[position - 1]) ? 1 : 0;
+			position -= held;
+			channelPosition += writeTo(channel, channelPosition, charset);
+			System.arraycopy(buffer, position, buffer, 0, held);
+			position = held;
+			return;
+		}
+		else if (output == null) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			return;
+		}
+		int offset = 0;
+		while (offset < position) {
+			long amount = output.write(IOUtils.wrap(buffer, offset, position - offset, true));
+			if (amount <= 0) {
+				throw new IOException("Could not write to the output");
+			}
+			offset += amount;
+		}
+		position = 0;
+	}
+
+	void flush() throws IOException {
+		if (output != null) {
+			flushBuffer();
+			output.flush();
+		}
+		else if (channel != null) {
+			// the writer is done, a trailing high surrogate is written as is
+			channelPosition += writeTo(channel, channelPosition, charset);
+			position = 0;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * A local file that is memory mapped when it is parsed. The characters are decoded straight from the mapped bytes:
+ * 		- single byte charsets (e.g. ISO-8859-1, ASCII) are decoded using a lookup table
+ * 		- for other ASCII compatible charsets (e.g. UTF-8), runs of ASCII characters are copied as is, anything else goes through a decoder
+ * The parser reads straight from the decoded characters so there is no need for an additional read buffer.
+ */
+public class MappedFileResource implements ReadableResource, FiniteResource {
+
+	// the file is mapped in segments as a single mapping is limited to 2gb
+	private static final long SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+	private File file;
+
+	public MappedFileResource(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public long getSize() {
+		return file.length();
+	}
+
+	@Override
+	public String getContentType() {
+		return "text/plain";
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return null;
+	}
+
+	@Override
+	public ReadableContainer<be.nabu.utils.io.api.ByteBuffer> getReadable() throws IOException {
+		return IOUtils.wrap(new FileInputStream(file));
+	}
+
+	/**
+	 * Returns the decoded characters of the file, starting at the given byte offset
+	 */
+	public ReadableContainer<CharBuffer> getCharacters(Charset charset, long offset) {
+		return new MappedCharContainer(charset, offset, null);
+	}
+	
+	/**
+	 * Decodes the file from the start and reports the checkpoints while decoding
+	 */
+	ReadableContainer<CharBuffer> getCharacters(Charset charset, Checkpoints checkpoints) {
+		return new MappedCharContainer(charset, 0, checkpoints);
+	}
+
+	private static char [] getTable(Charset charset) {
+		if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1 || charset.newDecoder().maxCharsPerByte() != 1) {
+			return null;
+		}
+		byte [] bytes = new byte[256];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		char [] table = new String(bytes, charset).toCharArray();
+		return table.length == 256 ? table : null;
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		byte [] bytes = new byte[128];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		String string = new String(bytes, charset);
+		if (string.length() != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (string.charAt(i) != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private class MappedCharContainer implements ReadableContainer<CharBuffer> {
+
+		private long size, start;
+		private ByteBuffer bytes;
+		private char [] table;
+		private boolean asciiCompatible;
+		private CharsetDecoder decoder;
+		private char [] chars = new char[8192];
+		private int offset, length;
+		private boolean closed;
+		private Checkpoints checkpoints;
+		private long decoded;
+
+		MappedCharContainer(Charset charset, long start, Checkpoints checkpoints) {
+			this.start = start;
+			this.checkpoints = checkpoints;
+			this.size = file.length();
+			this.table = getTable(charset);
+			if (table == null) {
+				this.asciiCompatible = isAsciiCompatible(charset);
+				this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+		}
+
+		@Override
+		public long read(CharBuffer target) throws IOException {
+			if (closed) {
+				throw new IOException("The container is closed");
+			}
+			long total = 0;
+			while (true) {
+				if (offset == length && !fill()) {
+					return total == 0 ? -1 : total;
+				}
+				int available = length - offset;
+				long written = target.write(IOUtils.wrap(chars, offset, available, true));
+				offset += written;
+				total += written;
+				// the target is full
+				if (written < available) {
+					return total;
+				}
+			}
+		}
+
+		/**
+		 * Maps the next segment if the current one is exhausted, we also remap if there are only a few bytes left as they might be a partial character
+		 */
+		private ByteBuffer getBytes() throws IOException {
+			long end = bytes == null ? start : start + bytes.limit();
+			if (bytes == null || (bytes.remaining() < 4 && end < size)) {
+				if (bytes != null) {
+					start += bytes.position();
+				}
+				RandomAccessFile random = new RandomAccessFile(file, "r");
+				try {
+					// the mapping remains valid after the file is closed
+					bytes = random.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+				}
+				finally {
+					random.close();
+				}
+			}
+			return bytes;
+		}
+
+		private boolean fill() throws IOException {
+			ByteBuffer bytes = getBytes();
+			if (!bytes.hasRemaining()) {
+				return false;
+			}
+			offset = 0;
+			length = 0;
+			if (table != null) {
+				int amount = Math.min(chars.length, bytes.remaining());
+				for (int i = 0; i < amount; i++) {
+					chars[i] = table[bytes.get() & 0xff];
+				}
+				length = amount;
+			}
+			else {
+				if (asciiCompatible) {
+					int position = bytes.position();
+					int limit = position + Math.min(chars.length, bytes.remaining());
+					byte current;
+					while (position < limit && (current = bytes.get(position)) >= 0) {
+						chars[length++] = (char) current;
+						position++;
+					}
+					bytes.position(position);
+				}
+				// we are at a character that needs actual decoding
+				if (length == 0) {
+					boolean last = start + bytes.limit() >= size;
+					java.nio.CharBuffer output = java.nio.CharBuffer.wrap(chars);
+					CoderResult result = decoder.decode(bytes, output, last);
+					if (last && !bytes.hasRemaining()) {
+						decoder.flush(output);
+					}
+					if (result.isError()) {
+						try {
+							result.throwException();
+						}
+						catch (CharacterCodingException e) {
+							throw new IOException(e);
+						}
+					}
+					length = output.position();
+				}
+			}
+			decoded += length;
+			// checkpoints are only reported when decoding from the start, so the position in the file is the amount of bytes consumed
+			if (checkpoints != null) {
+				checkpoints.decoded(decoded, start + bytes.position());
+			}
+			return length > 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			bytes = null;
+		}
+	}
+}
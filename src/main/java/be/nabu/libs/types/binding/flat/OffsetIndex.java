@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import be.nabu.libs.types.binding.api.WindowedList;
+
+/**
+ * A sidecar file for a windowed list in a large file, it contains:
+ * 		- a fingerprint of the file (size, modification time and a hash of a number of samples) and the binding
+ * 		- the offsets of all the records in the windowed list
+ * 		- the text that comes after the windowed list (e.g. the footer)
+ * 		- the byte offset checkpoints so pages can still be loaded without decoding the entire file
+ * When the index is valid, only the part before the list and the first window of records have to be parsed.
+ */
+class OffsetIndex {
+
+	private static final int MAGIC = 0x46424958;
+	private static final int VERSION = 1;
+	// the size of the samples that are hashed
+	private static final int SAMPLE_SIZE = 4096;
+	private static final int SAMPLES = 16;
+
+	private long [] offsets;
+	private String tail;
+	private Checkpoints checkpoints;
+
+	OffsetIndex(long [] offsets, String tail, Checkpoints checkpoints) {
+		this.offsets = offsets;
+		this.tail = tail;
+		this.checkpoints = checkpoints;
+	}
+
+	long [] getOffsets() {
+		return offsets;
+	}
+
+	String getTail() {
+		return tail;
+	}
+
+	Checkpoints getCheckpoints() {
+		return checkpoints;
+	}
+
+	/**
+	 * Returns null if there is no index or it is no longer valid for the file or binding
+	 */
+	static OffsetIndex read(File index, File file, long bindingHash, Charset charset) throws IOException {
+		if (!index.exists()) {
+			return null;
+		}
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+		try {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				return null;
+			}
+			if (input.readLong() != file.length() || input.readLong() != file.lastModified() || input.readLong() != getSampleHash(file) || input.readLong() != bindingHash) {
+				return null;
+			}
+			long [] offsets = new long[input.readInt()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = input.readLong();
+			}
+			char [] tail = new char[input.readInt()];
+			for (int i = 0; i < tail.length; i++) {
+				tail[i] = input.readChar();
+			}
+			return new OffsetIndex(offsets, new String(tail), Checkpoints.read(input, charset));
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * The index is written to a temporary file first so a reader never sees a partial index
+	 */
+	void write(File index, File file, long bindingHash) throws IOException {
+		File temporary = new File(index.getParentFile(), index.getName() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(file.length());
+			output.writeLong(file.lastModified());
+			output.writeLong(getSampleHash(file));
+			output.writeLong(bindingHash);
+			output.writeInt(offsets.length);
+			for (long offset : offsets) {
+				output.writeLong(offset);
+			}
+			output.writeInt(tail.length());
+			output.writeChars(tail);
+			checkpoints.write(output);
+		}
+		finally {
+			output.close();
+		}
+		if ((index.exists() && !index.delete()) || !temporary.renameTo(index)) {
+			temporary.delete();
+			throw new IOException("Could not write the index " + index);
+		}
+	}
+
+	/**
+	 * Hashes a number of samples spread over the file (including the start and the end) instead of the entire file
+	 */
+	static long getSampleHash(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte [] sample = new byte[SAMPLE_SIZE];
+		RandomAccessFile random = new RandomAccessFile(file, "r");
+		try {
+			long length = random.length();
+			long step = Math.max(SAMPLE_SIZE, length / SAMPLES);
+			for (long position = 0; position < length; position += step) {
+				random.seek(position);
+				crc.update(sample, 0, random.read(sample));
+			}
+			if (length > SAMPLE_SIZE) {
+				random.seek(length - SAMPLE_SIZE);
+				random.readFully(sample);
+				crc.update(sample);
+			}
+		}
+		finally {
+			random.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Keeps track of the windowed list at the given path while parsing
+	 */
+	static class Recorder {
+
+		private String path;
+		@SuppressWarnings("rawtypes")
+		private WindowedList list;
+		private long [] offsets = new long[1024];
+		private int count;
+
+		Recorder(String path) {
+			this.path = path;
+		}
+
+		@SuppressWarnings("rawtypes")
+		void record(String path, WindowedList list, int index, long offset) {
+			if (this.path.equals(path)) {
+				this.list = list;
+				if (index >= offsets.length) {
+					offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, index + 1));
+				}
+				offsets[index] = offset;
+				count = Math.max(count, index + 1);
+			}
+		}
+
+		@SuppressWarnings("rawtypes")
+		WindowedList getList() {
+			return list;
+		}
+
+		long [] getOffsets() {
+			return Arrays.copyOf(offsets, count);
+		}
+
+		int getCount() {
+			return count;
+		}
+	}
+}
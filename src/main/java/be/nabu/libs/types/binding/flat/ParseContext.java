@@ -0,0 +1,248 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * All the state of a single parse, this allows a binding to be used by multiple threads at the same time.
+ */
+class ParseContext {
+
+	private static final int MAX_RETAINED_RECORD_BUFFER = 65536;
+
+	private ReadableResource resource;
+	private Diagnostics diagnostics;
+	private char [] stringificationBuffer = new char[4096];
+	private char [] recordBuffer = new char[512];
+	// a field value is copied here to be decoded, this is separate from the record buffer as the record might still be in there
+	private char [] valueBuffer = new char[64];
+	private CharDecoder decoder;
+	// the amount of fragments we are currently in that are limited by a separator or a length
+	private int bounded;
+	// records at this path are handed to the handler instead of being set in their parent
+	private String handledPath;
+	private RecordHandler recordHandler;
+	private Checkpoints checkpoints;
+	private OffsetIndex.Recorder recorder;
+	private long lookAhead = CompiledFlatBinding.MIN_LOOK_AHEAD;
+	// only set if the binding has a listener
+	private ParseStatistics statistics;
+
+	/**
+	 * A context without diagnostics, e.g. for trial parses that only need to know whether they succeed
+	 */
+	ParseContext(ReadableResource resource) {
+		this(resource, Diagnostics.NONE);
+	}
+	
+	ParseContext(ReadableResource resource, Diagnostics diagnostics) {
+		this.resource = resource;
+		this.diagnostics = diagnostics;
+	}
+
+	/**
+	 * Prepares a context that was used before for a new parse, only the buffers are kept
+	 */
+	void reset(ReadableResource resource, Diagnostics diagnostics) {
+		this.resource = resource;
+		this.diagnostics = diagnostics;
+		this.bounded = 0;
+		this.handledPath = null;
+		this.recordHandler = null;
+		this.checkpoints = null;
+		this.recorder = null;
+		this.lookAhead = CompiledFlatBinding.MIN_LOOK_AHEAD;
+		this.statistics = null;
+	}
+	
+	/**
+	 * Drops the references to the parsed data, a record buffer that grew very large is not kept
+	 */
+	void release() {
+		this.resource = null;
+		if (decoder != null) {
+			decoder.release();
+		}
+		if (recordBuffer.length > MAX_RETAINED_RECORD_BUFFER) {
+			recordBuffer = new char[512];
+		}
+		if (valueBuffer.length > MAX_RETAINED_RECORD_BUFFER) {
+			valueBuffer = new char[64];
+		}
+	}
+	
+	/**
+	 * The decoder for the given charset, it is kept so its buffers can be reused
+	 */
+	CharDecoder getDecoder(Charset charset) {
+		if (decoder == null || !decoder.getCharset().equals(charset)) {
+			decoder = new CharDecoder(charset);
+		}
+		return decoder;
+	}
+
+	/**
+	 * The resource that is being parsed, windowed lists use it to reload their data
+	 */
+	ReadableResource getResource() {
+		return resource;
+	}
+
+	void enterBounded() {
+		bounded++;
+	}
+	
+	void exitBounded() {
+		bounded--;
+	}
+	
+	/**
+	 * Whether or not the current fragment can read from the underlying stream without any limitations
+	 */
+	boolean isUnbounded() {
+		return bounded == 0;
+	}
+
+	void setRecordHandler(String path, RecordHandler recordHandler) {
+		this.handledPath = path;
+		this.recordHandler = recordHandler;
+	}
+	
+	boolean isHandled(String path) {
+		return recordHandler != null && path.equals(handledPath);
+	}
+	
+	void handle(ComplexContent content, long offset) throws IOException {
+		recordHandler.handle(content, offset);
+	}
+	
+	interface RecordHandler {
+		public void handle(ComplexContent content, long offset) throws IOException;
+	}
+
+	long getLookAhead() {
+		return lookAhead;
+	}
+
+	void setLookAhead(long lookAhead) {
+		this.lookAhead = lookAhead;
+	}
+
+	ParseStatistics getStatistics() {
+		return statistics;
+	}
+
+	void setStatistics(ParseStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	Checkpoints getCheckpoints() {
+		return checkpoints;
+	}
+
+	void setCheckpoints(Checkpoints checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+
+	OffsetIndex.Recorder getRecorder() {
+		return recorder;
+	}
+
+	void setRecorder(OffsetIndex.Recorder recorder) {
+		this.recorder = recorder;
+	}
+
+	Diagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * This is a copy of the IOUtils.toString() method with the exception that the used char array does not have to be instantiated every time
+	 * This appears to make a ~30% difference in performance
+	 */
+	String toString(ReadableContainer<CharBuffer> readable) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		long read = 0;
+		while ((read = readable.read(IOUtils.wrap(stringificationBuffer, false))) > 0) {
+			builder.append(new String(stringificationBuffer, 0, (int) read));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Reads up to the given amount of characters into the record buffer, the amount that was actually read is returned
+	 */
+	int read(ReadableContainer<CharBuffer> readable, int amount) throws IOException {
+		if (recordBuffer.length < amount) {
+			recordBuffer = new char[amount];
+		}
+		int total = 0;
+		long read = 0;
+		while (total < amount && (read = readable.read(IOUtils.wrap(recordBuffer, total, amount - total, false))) > 0) {
+			total += read;
+		}
+		return total;
+	}
+	
+	/**
+	 * Reads everything into the record buffer (growing it if necessary), the amount that was read is returned
+	 */
+	int readAll(ReadableContainer<CharBuffer> readable) throws IOException {
+		int total = 0;
+		long read = 0;
+		while (true) {
+			if (total == recordBuffer.length) {
+				recordBuffer = Arrays.copyOf(recordBuffer, recordBuffer.length * 2);
+			}
+			read = readable.read(IOUtils.wrap(recordBuffer, total, recordBuffer.length - total, false));
+			if (read <= 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+	
+	char [] getRecordBuffer() {
+		return recordBuffer;
+	}
+	
+	/**
+	 * Copies the value into a reusable buffer so it can be decoded without creating a new array
+	 */
+	char [] toCharacters(String value) {
+		if (valueBuffer.length < value.length()) {
+			valueBuffer = new char[value.length()];
+		}
+		value.getChars(0, value.length(), valueBuffer, 0);
+		return valueBuffer;
+	}
+
+	String formatMessages() {
+		return diagnostics.format();
+	}
+}
@@ -0,0 +1,395 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledFragment;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledRecord;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Field;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Record;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.containers.CountingReadableContainerImpl;
+
+/**
+ * The statistics of a single parse, they are only collected if the binding has a listener.
+ * The counters are updated by the parsing thread without synchronization, records that are parsed in parallel are merged in when their block is done.
+ */
+public class ParseStatistics {
+
+	// the amount of failure positions that are kept per fragment
+	private static final int MAX_POSITIONS = 10;
+	
+	private String type;
+	private long lookAhead, started, duration, characters, pushback, formatterTime, formatterCalls, maxRecordLength;
+	private boolean successful;
+	private Map<CompiledRecord, RecordStatistics> records = new IdentityHashMap<CompiledRecord, RecordStatistics>();
+	// only set when profiling, it counts every character that is read from the markable container, including the ones that are read again after a reset
+	private CountingReadableContainerImpl<CharBuffer> reads;
+	// the characters of failed attempts that have been attributed to a fragment so far
+	private long wasted;
+	// the fragment that made the current attempt fail
+	private CompiledFragment cause;
+	private Map<CompiledFragment, Backtrack> backtracks = new IdentityHashMap<CompiledFragment, Backtrack>();
+	
+	ParseStatistics(String type, long lookAhead) {
+		this.type = type;
+		this.lookAhead = lookAhead;
+		this.started = System.nanoTime();
+	}
+	
+	/**
+	 * Attributes the characters that are read more than once to the fragments that caused it, the given container must sit right on top of the markable container
+	 */
+	void profile(CountingReadableContainerImpl<CharBuffer> reads) {
+		this.reads = reads;
+	}
+	
+	/**
+	 * Marks the start of a trial parse, the result has to be passed to failed() if it does not match
+	 */
+	long attempt() {
+		if (reads == null) {
+			return 0;
+		}
+		cause = null;
+		return reads.getReadTotal() - wasted;
+	}
+	
+	void matched(CompiledRecord record, long characters) {
+		cause = null;
+		RecordStatistics statistics = getRecord(record);
+		statistics.matched++;
+		statistics.characters += characters;
+		if (characters > maxRecordLength) {
+			maxRecordLength = characters;
+		}
+	}
+	
+	void failed(CompiledRecord record) {
+		getRecord(record).failed++;
+	}
+	
+	/**
+	 * A trial parse of the record that started at the given position did not match, everything it read that was not attributed to a nested fragment yet is wasted
+	 */
+	void failed(CompiledRecord record, long position, long attempt) {
+		failed(record);
+		if (reads != null) {
+			long characters = reads.getReadTotal() - wasted - attempt;
+			wasted += characters;
+			Backtrack backtrack = getBacktrack(record);
+			backtrack.failures++;
+			backtrack.wasted += characters;
+			backtrack.position(position);
+			if (cause != null && cause != record) {
+				backtrack.cause(cause, 1);
+			}
+			// if the parent fails as well, it is because of this record
+			cause = record;
+		}
+	}
+	
+	/**
+	 * The field (or discriminator of the record) did not accept its value
+	 */
+	void cause(CompiledFragment fragment) {
+		if (reads != null) {
+			cause = fragment;
+		}
+	}
+	
+	void reset(CompiledRecord record) {
+		getRecord(record).resets++;
+	}
+	
+	void pushback(CompiledFragment fragment, long characters) {
+		pushback += characters;
+		if (reads != null && characters > 0) {
+			getBacktrack(fragment).pushback += characters;
+		}
+	}
+	
+	void formatted(long nanos) {
+		formatterTime += nanos;
+		formatterCalls++;
+	}
+	
+	void finish(long characters, boolean successful) {
+		this.duration = System.nanoTime() - started;
+		this.characters = characters;
+		this.successful = successful;
+	}
+	
+	/**
+	 * Adds the statistics of a partial parse (e.g. a task of a parallel block), this is done by the thread that owns these statistics
+	 */
+	void merge(ParseStatistics statistics) {
+		pushback += statistics.pushback;
+		formatterTime += statistics.formatterTime;
+		formatterCalls += statistics.formatterCalls;
+		maxRecordLength = Math.max(maxRecordLength, statistics.maxRecordLength);
+		for (RecordStatistics other : statistics.records.values()) {
+			RecordStatistics record = getRecord(other.record);
+			record.matched += other.matched;
+			record.failed += other.failed;
+			record.resets += other.resets;
+			record.characters += other.characters;
+		}
+		for (Backtrack other : statistics.backtracks.values()) {
+			Backtrack backtrack = getBacktrack(other.fragment);
+			backtrack.failures += other.failures;
+			backtrack.wasted += other.wasted;
+			backtrack.pushback += other.pushback;
+			for (int i = 0; i < other.positionCount; i++) {
+				backtrack.position(other.positions[i]);
+			}
+			for (Map.Entry<CompiledFragment, Long> cause : other.causes.entrySet()) {
+				backtrack.cause(cause.getKey(), cause.getValue());
+			}
+		}
+	}
+	
+	private Backtrack getBacktrack(CompiledFragment fragment) {
+		Backtrack backtrack = backtracks.get(fragment);
+		if (backtrack == null) {
+			backtrack = new Backtrack(fragment);
+			backtracks.put(fragment, backtrack);
+		}
+		return backtrack;
+	}
+	
+	private RecordStatistics getRecord(CompiledRecord record) {
+		RecordStatistics statistics = records.get(record);
+		if (statistics == null) {
+			statistics = new RecordStatistics(record);
+			records.put(record, statistics);
+		}
+		return statistics;
+	}
+	
+	/**
+	 * The name of the type that was parsed
+	 */
+	public String getType() {
+		return type;
+	}
+	/**
+	 * The look ahead of the binding, if the max record length comes close the look ahead might not be enough for other files
+	 */
+	public long getLookAhead() {
+		return lookAhead;
+	}
+	/**
+	 * The duration of the parse in nanoseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+	/**
+	 * The amount of characters that were consumed
+	 */
+	public long getCharacters() {
+		return characters;
+	}
+	public boolean isSuccessful() {
+		return successful;
+	}
+	/**
+	 * The amount of characters that were read and pushed back to be read again (e.g. peeked characters or the remainder of a delimited fragment)
+	 */
+	public long getPushback() {
+		return pushback;
+	}
+	/**
+	 * The time spent in formatters in nanoseconds
+	 */
+	public long getFormatterTime() {
+		return formatterTime;
+	}
+	public long getFormatterCalls() {
+		return formatterCalls;
+	}
+	/**
+	 * The longest record that was parsed, the marks have to be able to hold at least this many characters
+	 */
+	public long getMaxRecordLength() {
+		return maxRecordLength;
+	}
+	public List<RecordStatistics> getRecords() {
+		return new ArrayList<RecordStatistics>(records.values());
+	}
+	/**
+	 * Whether or not the backtracks were profiled for this parse
+	 */
+	public boolean isProfiled() {
+		return reads != null;
+	}
+	/**
+	 * The amount of characters that were read by trial parses that failed and had to be read again, only available when profiling
+	 */
+	public long getWasted() {
+		return wasted;
+	}
+	/**
+	 * The fragments that caused characters to be read again, the most expensive first, only available when profiling
+	 */
+	public List<Backtrack> getBacktracks() {
+		List<Backtrack> list = new ArrayList<Backtrack>(backtracks.values());
+		Collections.sort(list, new Comparator<Backtrack>() {
+			@Override
+			public int compare(Backtrack o1, Backtrack o2) {
+				return Long.compare(o2.getWasted() + o2.getPushback(), o1.getWasted() + o1.getPushback());
+			}
+		});
+		return list;
+	}
+	
+	/**
+	 * A readable name for the fragment: the name of a record, the element it is mapped to, its description or the fixed value of a field
+	 */
+	static String getName(CompiledFragment fragment) {
+		String name = fragment.getFragment() instanceof Record ? ((Record) fragment.getFragment()).getName() : null;
+		if (name == null) {
+			name = fragment.getMap();
+		}
+		if (name == null) {
+			name = fragment.getFragment().getDescription();
+		}
+		if (name == null && fragment.getFragment() instanceof Field && ((Field) fragment.getFragment()).getFixed() != null) {
+			name = "'" + ((Field) fragment.getFragment()).getFixed() + "'";
+		}
+		return name == null ? fragment.toString() : name;
+	}
+	
+	public static class RecordStatistics {
+		private CompiledRecord record;
+		private long matched, failed, resets, characters;
+		
+		RecordStatistics(CompiledRecord record) {
+			this.record = record;
+		}
+		
+		public CompiledRecord getRecord() {
+			return record;
+		}
+		/**
+		 * A readable name for the record: its name, the element it is mapped to or its description
+		 */
+		public String getName() {
+			return ParseStatistics.getName(record);
+		}
+		public long getMatched() {
+			return matched;
+		}
+		/**
+		 * The amount of trial parses of this record that failed
+		 */
+		public long getFailed() {
+			return failed;
+		}
+		/**
+		 * The amount of times the parser had to go back to the mark because this record (or one of its fields) failed
+		 */
+		public long getResets() {
+			return resets;
+		}
+		/**
+		 * The amount of characters in the matched records
+		 */
+		public long getCharacters() {
+			return characters;
+		}
+	}
+	
+	/**
+	 * The characters that a fragment caused to be read more than once: by trial parses of the fragment that failed and by pushing back what it read too much
+	 */
+	public static class Backtrack {
+		private CompiledFragment fragment;
+		private long failures, wasted, pushback;
+		private long [] positions = new long[MAX_POSITIONS];
+		private int positionCount;
+		private Map<CompiledFragment, Long> causes = new IdentityHashMap<CompiledFragment, Long>();
+		
+		Backtrack(CompiledFragment fragment) {
+			this.fragment = fragment;
+		}
+		
+		private void position(long position) {
+			if (positionCount < positions.length) {
+				positions[positionCount++] = position;
+			}
+		}
+		
+		private void cause(CompiledFragment cause, long amount) {
+			Long current = causes.get(cause);
+			causes.put(cause, current == null ? amount : current + amount);
+		}
+		
+		public CompiledFragment getFragment() {
+			return fragment;
+		}
+		public String getName() {
+			return ParseStatistics.getName(fragment);
+		}
+		/**
+		 * The amount of trial parses of the fragment that failed
+		 */
+		public long getFailures() {
+			return failures;
+		}
+		/**
+		 * The amount of characters read by the failed trial parses (excluding the ones already attributed to nested fragments)
+		 */
+		public long getWasted() {
+			return wasted;
+		}
+		/**
+		 * The amount of characters the fragment read and pushed back to be read again
+		 */
+		public long getPushback() {
+			return pushback;
+		}
+		/**
+		 * The character offsets of the first failed trial parses
+		 */
+		public long [] getPositions() {
+			return Arrays.copyOf(positions, positionCount);
+		}
+		/**
+		 * The nested fragments that made the trial parses fail and how often they did
+		 */
+		public Map<String, Long> getCauses() {
+			Map<String, Long> causes = new LinkedHashMap<String, Long>();
+			for (Map.Entry<CompiledFragment, Long> cause : this.causes.entrySet()) {
+				String name = ParseStatistics.getName(cause.getKey());
+				Long current = causes.get(name);
+				causes.put(name, current == null ? cause.getValue() : current + cause.getValue());
+			}
+			return causes;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.flat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random strings for a regex. Only the common constructs are supported: literals, escapes, character classes, groups, alternatives and quantifiers.
+ * Anchors and word boundaries are ignored, lookarounds and back references are not supported.
+ * Unbounded quantifiers are limited to a few repetitions, the result should still be checked against the actual pattern.
+ */
+class RegexGenerator {
+
+	// the amount of extra repetitions an unbounded quantifier can generate
+	private static final int MAX_REPEAT = 8;
+	private static final String DIGITS = "0123456789";
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final String WORD = LETTERS + DIGITS + "_";
+	
+	private String regex;
+	private Random random;
+
+	RegexGenerator(String regex, Random random) {
+		this.regex = regex;
+		this.random = random;
+	}
+	
+	String generate() {
+		StringBuilder builder = new StringBuilder();
+		int end = alternatives(0, builder);
+		if (end != regex.length()) {
+			throw new IllegalArgumentException("Unbalanced group at " + end + " in: " + regex);
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Picks one of the alternatives that start at the position, it returns the position of the closing bracket (or the end of the regex)
+	 */
+	private int alternatives(int position, StringBuilder builder) {
+		List<Integer> starts = new ArrayList<Integer>();
+		starts.add(position);
+		int end = position;
+		while (end < regex.length() && regex.charAt(end) != ')') {
+			if (regex.charAt(end) == '|') {
+				starts.add(++end);
+			}
+			else {
+				end = skip(end);
+			}
+		}
+		int chosen = random.nextInt(starts.size());
+		sequence(starts.get(chosen), chosen == starts.size() - 1 ? end : starts.get(chosen + 1) - 1, builder);
+		return end;
+	}
+	
+	private void sequence(int position, int end, StringBuilder builder) {
+		while (position < end) {
+			int atomEnd = skip(position);
+			int min = 1, max = 1, next = atomEnd;
+			if (atomEnd < end) {
+				char character = regex.charAt(atomEnd);
+				if (character == '?' || character == '*' || character == '+') {
+					min = character == '+' ? 1 : 0;
+					max = character == '?' ? 1 : min + MAX_REPEAT;
+					next = atomEnd + 1;
+				}
+				else if (character == '{' && regex.indexOf('}', atomEnd) > 0 && regex.substring(atomEnd + 1, regex.indexOf('}', atomEnd)).matches("[0-9]+(,[0-9]*)?")) {
+					String [] parts = regex.substring(atomEnd + 1, regex.indexOf('}', atomEnd)).split(",", -1);
+					min = Integer.parseInt(parts[0]);
+					max = parts.length == 1 ? min : (parts[1].isEmpty() ? min + MAX_REPEAT : Integer.parseInt(parts[1]));
+					next = regex.indexOf('}', atomEnd) + 1;
+				}
+				// lazy and possessive quantifiers generate the same strings
+				if (next > atomEnd && next < end && (regex.charAt(next) == '?' || regex.charAt(next) == '+')) {
+					next++;
+				}
+			}
+			int count = min + random.nextInt(max - min + 1);
+			for (int i = 0; i < count; i++) {
+				atom(position, builder);
+			}
+			position = next;
+		}
+	}
+	
+	private void atom(int position, StringBuilder builder) {
+		char character = regex.charAt(position);
+		switch (character) {
+			case '(':
+				int start = position + 1;
+				if (regex.startsWith("?:", start)) {
+					start += 2;
+				}
+				else if (regex.startsWith("?", start)) {
+					throw new IllegalArgumentException("Unsupported group at " + position + " in: " + regex);
+				}
+				alternatives(start, builder);
+			break;
+			case '[':
+				builder.append(characterClass(position));
+			break;
+			case '\\':
+				escape(regex.charAt(position + 1), builder);
+			break;
+			case '.':
+				builder.append(pick(WORD));
+			break;
+			case '^':
+			case '$':
+			break;
+			default:
+				builder.append(character);
+		}
+	}
+	
+	private void escape(char character, StringBuilder builder) {
+		switch (character) {
+			case 'd': builder.append(pick(DIGITS)); break;
+			case 'w': builder.append(pick(WORD)); break;
+			case 's': builder.append(' '); break;
+			case 'D':
+			case 'W':
+			case 'S': builder.append(character == 'W' ? '-' : pick(LETTERS)); break;
+			case 't': builder.append('\t'); break;
+			case 'n': builder.append('\n'); break;
+			case 'r': builder.append('\r'); break;
+			case 'b':
+			case 'B':
+			case 'A':
+			case 'z':
+			case 'Z':
+			break;
+			default:
+				if (Character.isDigit(character)) {
+					throw new IllegalArgumentException("Back references are not supported: " + regex);
+				}
+				builder.append(character);
+		}
+	}
+	
+	private char characterClass(int position) {
+		int end = skip(position) - 1;
+		int index = position + 1;
+		boolean negated = index < end && regex.charAt(index) == '^';
+		if (negated) {
+			index++;
+		}
+		StringBuilder members = new StringBuilder();
+		while (index < end) {
+			char character = regex.charAt(index++);
+			if (character == '\\') {
+				char escaped = regex.charAt(index++);
+				if (escaped == 'd' || escaped == 'w' || escaped == 's') {
+					members.append(escaped == 'd' ? DIGITS : (escaped == 'w' ? WORD : " \t"));
+					continue;
+				}
+				character = escaped == 't' ? '\t' : (escaped == 'n' ? '\n' : (escaped == 'r' ? '\r' : escaped));
+			}
+			if (index + 1 < end && regex.charAt(index) == '-') {
+				char to = regex.charAt(index + 1);
+				for (char member = character; member <= to; member++) {
+					members.append(member);
+				}
+				index += 2;
+			}
+			else {
+				members.append(character);
+			}
+		}
+		if (negated) {
+			StringBuilder candidates = new StringBuilder();
+			for (char candidate = '!'; candidate <= '~'; candidate++) {
+				if (members.indexOf(Character.toString(candidate)) < 0) {
+					candidates.append(candidate);
+				}
+			}
+			members = candidates;
+		}
+		if (members.length() == 0) {
+			throw new IllegalArgumentException("Empty character class at " + position + " in: " + regex);
+		}
+		return members.charAt(random.nextInt(members.length()));
+	}
+	
+	/**
+	 * Returns the position after the atom (without quantifier) that starts at the given position
+	 */
+	private int skip(int position) {
+		char character = regex.charAt(position);
+		if (character == '\\') {
+			return position + 2;
+		}
+		else if (character == '[') {
+			int index = position + 1;
+			if (index < regex.length() && regex.charAt(index) == '^') {
+				index++;
+			}
+			// a leading bracket is a literal
+			if (index < regex.length() && regex.charAt(index) == ']') {
+				index++;
+			}
+			while (index < regex.length() && regex.charAt(index) != ']') {
+				index += regex.charAt(index) == '\\' ? 2 : 1;
+			}
+			if (index >= regex.length()) {
+				throw new IllegalArgumentException("Unclosed character class at " + position + " in: " + regex);
+			}
+			return index + 1;
+		}
+		else if (character == '(') {
+			int index = position + 1;
+			while (index < regex.length() && regex.charAt(index) != ')') {
+				index = skip(index);
+			}
+			if (index >= regex.length()) {
+				throw new IllegalArgumentException("Unclosed group at " + position + " in: " + regex);
+			}
+			return index + 1;
+		}
+		return position + 1;
+	}
+	
+	private char pick(String characters) {
+		return characters.charAt(random.nextInt(characters.length()));
+	}
+}
@@ -17,17 +17,59 @@
 
 package be.nabu.libs.types.binding.flat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.namespace.QName;
 
 import junit.framework.TestCase;
 import be.nabu.libs.types.DefinedTypeResolverFactory;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledField;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledFragment;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.CompiledRecord;
+import be.nabu.libs.types.binding.flat.CompiledFlatBinding.Discriminator;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Field;
+import be.nabu.libs.types.binding.flat.FlatBindingConfig.Record;
 import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.validator.api.ValidationMessage;
+import be.nabu.libs.validator.api.ValidationMessage.Severity;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 
@@ -76,6 +118,40 @@ public class TestFlat extends TestCase {
 		}
 	}
 	
+	public void testDiagnostics() throws IOException, ParseException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		// the end of the employee list is a failed match
+		validate(unmarshal(binding, "flat-input.csv", Company.class));
+		assertFalse(binding.getMessages().isEmpty());
+		binding.setMaxDiagnostics(2);
+		validate(unmarshal(binding, "flat-input.csv", Company.class));
+		assertEquals(2, binding.getMessages().size());
+		binding.setDiagnosticsLevel(DiagnosticsLevel.OFF);
+		validate(unmarshal(binding, "flat-input.csv", Company.class));
+		assertTrue(binding.getMessages().isEmpty());
+		// a failed parse still fails without diagnostics
+		try {
+			unmarshal(binding, "flat-wrong-header.csv", Company.class);
+			fail("Should fail");
+		}
+		catch (ParseException e) {
+			assertTrue(binding.getMessages().isEmpty());
+		}
+		binding.setDiagnosticsLevel(DiagnosticsLevel.ERRORS);
+		binding.setMaxDiagnostics(1000);
+		try {
+			unmarshal(binding, "flat-wrong-header.csv", Company.class);
+			fail("Should fail");
+		}
+		catch (ParseException e) {
+			assertFalse(binding.getMessages().isEmpty());
+			for (ValidationMessage message : binding.getMessages()) {
+				assertEquals(Severity.ERROR, message.getSeverity());
+			}
+		}
+	}
+
 	public void testAge() throws IOException, ParseException {
 		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
 		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
@@ -113,6 +189,751 @@ public class TestFlat extends TestCase {
 		validate(companies.getCompanies().get(1));
 	}
 	
+	public void testDiscriminator() throws IOException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		CompiledRecord root = binding.compile(new BeanInstance<Company>(new Company()).getType()).getRoot();
+		Discriminator header = ((CompiledRecord) root.getChildren().get(0)).getDiscriminator();
+		assertNotNull(header);
+		assertTrue(header.matches("Company,Nabu,Organizational"));
+		assertFalse(header.matches("0,John0,Doe0,31"));
+		// the employees are only identified by a regex
+		assertNull(((CompiledRecord) root.getChildren().get(1)).getDiscriminator());
+	}
+	
+	public void testConcurrentParse() throws IOException, ParseException, InterruptedException, ExecutionException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		final FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		final String expected = marshal(binding, unmarshal(binding, "flat-input.csv", Company.class));
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 200; i++) {
+				// mix in failing parses to make sure the messages don't bleed into other parses
+				final String name = i % 10 == 0 ? "flat-no-footer.csv" : "flat-input.csv";
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						try {
+							return marshal(binding, unmarshal(binding, name, Company.class));
+						}
+						catch (ParseException e) {
+							return null;
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				if (i % 10 == 0) {
+					assertNull(futures.get(i).get());
+				}
+				else {
+					assertEquals(expected, futures.get(i).get());
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	public void testParallelParse() throws IOException, ParseException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		String expected = marshal(binding, unmarshal(binding, "flat-input.csv", Company.class));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			binding.setExecutorService(executor);
+			// a small block size makes sure records are split over multiple blocks
+			binding.setParallelBlockSize(100);
+			Company result = unmarshal(binding, "flat-input.csv", Company.class);
+			validate(result);
+			assertEquals(expected, marshal(binding, result));
+			try {
+				unmarshal(binding, "flat-no-footer.csv", Company.class);
+				fail("should fail");
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testConcurrentPartialParse() throws IOException, ParseException, InterruptedException, ExecutionException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		CompiledRecord employees = null;
+		for (CompiledFragment child : binding.compile(new BeanInstance<Company>(new Company()).getType()).getRoot().getChildren()) {
+			if (child instanceof CompiledRecord && ((CompiledRecord) child).isList()) {
+				employees = (CompiledRecord) child;
+			}
+		}
+		final FlatBinding.PartialFlatUnmarshaller unmarshaller = binding.new PartialFlatUnmarshaller(null, employees, employees.getType(), new Window("company/employees", 4, 4));
+		// the employees start on the second line
+		String input = IOUtils.toString(IOUtils.wrapReadable(IOUtils.wrap(Thread.currentThread().getContextClassLoader().getResourceAsStream("flat-input.csv")), binding.getCharset()));
+		final List<Long> offsets = new ArrayList<Long>();
+		for (int index = input.indexOf('\n'); index >= 0 && offsets.size() < 24; index = input.indexOf('\n', index + 1)) {
+			offsets.add((long) index + 1);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<ComplexContent>>> futures = new ArrayList<Future<List<ComplexContent>>>();
+			for (int i = 0; i < offsets.size(); i += 4) {
+				final long offset = offsets.get(i);
+				futures.add(executor.submit(new Callable<List<ComplexContent>>() {
+					@Override
+					public List<ComplexContent> call() throws Exception {
+						InputStream stream = Thread.currentThread().getContextClassLoader().getResourceAsStream("flat-input.csv");
+						try {
+							return unmarshaller.unmarshal(stream, offset, 4);
+						}
+						finally {
+							stream.close();
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				List<ComplexContent> batch = futures.get(i).get();
+				assertEquals(4, batch.size());
+				for (int j = 0; j < batch.size(); j++) {
+					assertEquals("John" + (i * 4 + j), TypeUtils.getAsBean(batch.get(j), Company.Employee.class).getFirstName());
+				}
+			}
+			// the record from the configuration gives the same result
+			FlatBinding.PartialFlatUnmarshaller configured = binding.new PartialFlatUnmarshaller((Record) employees.getFragment(), employees.getType(), new Window("company/employees", 4, 4));
+			InputStream stream = Thread.currentThread().getContextClassLoader().getResourceAsStream("flat-input.csv");
+			try {
+				assertEquals("John4", TypeUtils.getAsBean(configured.unmarshal(stream, offsets.get(4), 4).get(0), Company.Employee.class).getFirstName());
+			}
+			finally {
+				stream.close();
+			}
+			// without a resource there is nothing to load from
+			try {
+				configured.unmarshal(offsets.get(4), 4);
+				fail("The unmarshaller has no resource");
+			}
+			catch (IllegalStateException e) {
+				// expected
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testRecordReader() throws IOException, ParseException, URISyntaxException, InterruptedException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		File file = new File(Thread.currentThread().getContextClassLoader().getResource("flat-input.csv").toURI());
+		String input = new String(Files.readAllBytes(file.toPath()), binding.getCharset());
+		Company expected = unmarshal(binding, "flat-input.csv", Company.class);
+		FlatRecordReader reader = binding.stream(new MappedFileResource(file), "employees");
+		try {
+			int index = 0;
+			while (reader.hasNext()) {
+				Company.Employee employee = TypeUtils.getAsBean(reader.next(), Company.Employee.class);
+				assertEquals(expected.getEmployees().get(index).getFirstName(), employee.getFirstName());
+				// the offset is where the record starts
+				assertTrue(input.startsWith(index + ",John" + index + ",", (int) reader.getOffset()));
+				// the header is parsed before the first record
+				assertEquals("Nabu", TypeUtils.getAsBean(reader.getContent(), Company.class).getName());
+				index++;
+			}
+			assertEquals(expected.getEmployees().size(), index);
+			Company company = TypeUtils.getAsBean(reader.getContent(), Company.class);
+			assertEquals("Nabu HQ", company.getAddress());
+			assertTrue(company.getEmployees() == null || company.getEmployees().isEmpty());
+		}
+		finally {
+			reader.close();
+		}
+		
+		// closing the stream closes the reader
+		Stream<ComplexContent> stream = binding.stream(new MappedFileResource(file), "employees").stream();
+		try {
+			assertEquals(expected.getEmployees().size(), stream.count());
+		}
+		finally {
+			stream.close();
+		}
+		reader = binding.stream(new MappedFileResource(file), "employees");
+		stream = reader.stream();
+		assertNotNull(stream.iterator().next());
+		stream.close();
+		assertFalse(reader.hasNext());
+		
+		// a reader that is closed early stops parsing
+		reader = binding.stream(new MappedFileResource(file), "employees");
+		try {
+			assertNotNull(reader.next());
+		}
+		finally {
+			reader.close();
+		}
+		assertFalse(reader.hasNext());
+		for (int i = 0; i < 100 && reader.isParsing(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(reader.isParsing());
+		
+		// the records before the error are handed out, then the iterator fails
+		reader = binding.stream(new MappedFileResource(new File(Thread.currentThread().getContextClassLoader().getResource("flat-no-footer.csv").toURI())), "employees");
+		try {
+			while (reader.hasNext()) {
+				reader.next();
+			}
+			fail("should fail");
+		}
+		catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof ParseException);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public void testMappedParse() throws IOException, ParseException, URISyntaxException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		File file = new File(Thread.currentThread().getContextClassLoader().getResource("flat-input.csv").toURI());
+		// both the lookup table and the decoder should give the same result as the regular parse
+		for (String charset : new String[] { "ISO-8859-1", "UTF-8" }) {
+			FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName(charset));
+			Company result = TypeUtils.getAsBean(binding.unmarshal(file), Company.class);
+			validate(result);
+			assertEquals(marshal(binding, unmarshal(binding, "flat-input.csv", Company.class)), marshal(binding, result));
+		}
+	}
+
+	public void testCheckpoints() throws IOException {
+		// the second byte is not valid UTF-8, the decoder replaces it with a single character that takes up 3 bytes when encoded
+		byte [] bytes = { 'a', (byte) 0xff, (byte) 0xc3, (byte) 0xa9, (byte) 0xe2, (byte) 0x82, (byte) 0xac, (byte) 0xf0, (byte) 0x9d, (byte) 0x84, (byte) 0x9e };
+		String string = "a\ufffd\u00e9\u20ac\ud834\udd1e";
+		Checkpoints checkpoints = Checkpoints.newInstance(Charset.forName("UTF-8"), 1);
+		// a small buffer makes the decoder report a checkpoint every two characters
+		assertEquals(string, IOUtils.toString(new CharDecoder(Charset.forName("UTF-8")).reset(IOUtils.wrap(new ByteArrayInputStream(bytes)), 2, checkpoints)));
+		assertEquals(string.length(), checkpoints.floor(string.length())[0]);
+		assertEquals(bytes.length, checkpoints.floor(string.length())[1]);
+		// the offsets after the replaced byte are the actual byte offsets
+		assertEquals(2, checkpoints.floor(2)[1]);
+		assertEquals(7, checkpoints.floor(4)[1]);
+		// before the first checkpoint we have to start at the beginning
+		assertEquals(0, checkpoints.floor(1)[1]);
+	}
+
+	public void testOffsetIndex() throws IOException, ParseException, URISyntaxException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		File file = new File(Thread.currentThread().getContextClassLoader().getResource("flat-input.csv").toURI());
+		File index = File.createTempFile("flat-input", ".index");
+		index.delete();
+		try {
+			Window window = new Window(new BeanInstance<Company>(new Company()).getType().getName() + "/employees", 5, 5);
+			// the first parse builds the index, the second one uses it
+			for (int i = 0; i < 2; i++) {
+				Company result = TypeUtils.getAsBean(binding.unmarshal(file, index, window), Company.class);
+				assertTrue(index.exists());
+				validate(result);
+				assertEquals("John17", result.getEmployees().get(17).getFirstName());
+			}
+			// an empty window has no first records to restore, it is parsed without an index
+			index.delete();
+			window = new Window(window.getPath(), 0, 5);
+			Company result = TypeUtils.getAsBean(binding.unmarshal(file, index, window), Company.class);
+			assertFalse(index.exists());
+			validate(result);
+			assertEquals("John17", result.getEmployees().get(17).getFirstName());
+		}
+		finally {
+			index.delete();
+		}
+	}
+
+	public void testFixedLengthMarshal() throws IOException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("fixed-binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		assertEquals("CompanyNabu         "
+			+ "00001John      Doe        31  "
+			+ "00002Jane      Doe       100  "
+			+ "Nabu HQ-=-=BE666-66-66", marshal(binding, newCompany(2)));
+	}
+	
+	public void testFixedLengthParse() throws IOException, ParseException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("fixed-binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		// the employee record is sliced by its fields, the remaining 2 characters are filler
+		assertEquals(Integer.valueOf(28), ((CompiledRecord) binding.compile(new BeanInstance<Company>(new Company()).getType()).getRoot().getChildren().get(1)).getSlicedLength());
+		String text = marshal(binding, newCompany(3));
+		Company result = unmarshal(binding, new ByteArrayInputStream(text.getBytes("UTF-8")), Company.class);
+		assertEquals("Nabu", result.getName());
+		assertEquals(3, result.getEmployees().size());
+		assertEquals("1", result.getEmployees().get(0).getId());
+		assertEquals("Jane", result.getEmployees().get(1).getFirstName());
+		assertEquals(Integer.valueOf(31), result.getEmployees().get(0).getAge());
+		// the multi character pad is cut off where the marshaller cut it off
+		assertEquals("Nabu HQ", result.getAddress());
+		assertEquals("BE666-66-66", result.getBillingNumber());
+		assertEquals(text, marshal(binding, result));
+		// a wrong fixed value fails the record
+		try {
+			unmarshal(binding, new ByteArrayInputStream(text.replace("Company", "Persons").getBytes("UTF-8")), Company.class);
+			fail("The header does not match");
+		}
+		catch (ParseException e) {
+			// expected
+		}
+	}
+
+	public void testScannedParse() throws IOException, ParseException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		CompiledRecord root = binding.compile(new BeanInstance<Company>(new Company()).getType()).getRoot();
+		for (CompiledFragment child : root.getChildren()) {
+			assertTrue(((CompiledRecord) child).isScannable());
+		}
+		Company result = unmarshal(binding, "flat-input.csv", Company.class);
+		validate(result);
+		// the age can end the record
+		assertNull(result.getEmployees().get(0).getStartDay());
+		assertNotNull(result.getEmployees().get(1).getStartDay());
+		// the last name is not optional
+		try {
+			unmarshal(binding, new ByteArrayInputStream("Company,Nabu,Organizational\n0,John0\nNabu HQ,BE666-66-66".getBytes("UTF-8")), Company.class);
+			fail("The employee is not complete");
+		}
+		catch (ParseException e) {
+			// expected
+		}
+	}
+
+	public void testLookAhead() throws IOException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		// the delimited fields are not bounded so we need the configured look ahead
+		config.setMaxLookAhead(2000000);
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		assertEquals(2000000, binding.getLookAhead());
+		assertEquals(409600, binding.getReadBufferSize(null));
+		// fixed length records only need the largest record
+		FlatBindingConfig fixedConfig = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("fixed-binding.xml"));
+		FlatBinding fixedBinding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), fixedConfig, Charset.forName("UTF-8"));
+		assertEquals(30, CompiledFlatBinding.getMaxExtent(fixedBinding.compile(new BeanInstance<Company>(new Company()).getType()).getRoot().getChildren().get(1)));
+		assertEquals(CompiledFlatBinding.MIN_LOOK_AHEAD, fixedBinding.getLookAhead());
+		// a small file does not need a large buffer
+		File file = File.createTempFile("small", ".txt");
+		try {
+			Files.write(file.toPath(), "Company,Nabu,Organizational\n".getBytes("UTF-8"));
+			assertEquals(4096, binding.getReadBufferSize(new MappedFileResource(file)));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	public void testPooledParse() throws IOException, ParseException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		byte [] message = "Company,Nabu,Organizational\n0,John0,Doe0,31\n1,John1,Doe1,57,2013/12/03\nNabu HQ,BE666-66-66".getBytes("UTF-8");
+		assertEquals(2, unmarshal(binding, new ByteArrayInputStream(message), Company.class).getEmployees().size());
+		// the parse left its context for the next parse on this thread
+		ParseContext context = binding.acquireContext(null, true);
+		CharDecoder decoder = context.getDecoder(binding.getCharset());
+		// a record buffer that grew very large is not kept
+		context.read(IOUtils.wrap(new String(new char[100000])), 100000);
+		assertTrue(context.getRecordBuffer().length >= 100000);
+		binding.releaseContext(context);
+		assertTrue(context.getRecordBuffer().length < 100000);
+		
+		Company company = unmarshal(binding, new ByteArrayInputStream(message), Company.class);
+		assertEquals(2, company.getEmployees().size());
+		assertEquals("BE666-66-66", company.getBillingNumber());
+		ParseContext again = binding.acquireContext(null, true);
+		assertTrue(context == again);
+		assertTrue(decoder == again.getDecoder(binding.getCharset()));
+		binding.releaseContext(again);
+		
+		// without pooling every parse gets a new context
+		binding.setPooled(false);
+		assertEquals(2, unmarshal(binding, new ByteArrayInputStream(message), Company.class).getEmployees().size());
+		assertTrue(binding.acquireContext(null, true) != binding.acquireContext(null, true));
+	}
+
+	public void testMarshalFixedLength() throws IOException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("fixed-binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		Company company = newCompany(100000);
+		// every record takes up exactly its length, the allocation per record is measured by the marshal benchmark
+		ByteArrayOutputStream output = new ByteArrayOutputStream(100000 * 30 + 42);
+		binding.marshal(output, new BeanInstance<Company>(company));
+		assertEquals(100000 * 30 + 42, output.size());
+	}
+	
+	public void testParallelMarshal() throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		File file = File.createTempFile("fixed", ".txt");
+		try {
+			Company company = newCompany(1005);
+			for (String name : new String[] { "binding.xml", "fixed-binding.xml" }) {
+				FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource(name));
+				FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("ISO-8859-1"));
+				String expected = marshal(binding, company);
+				binding.setExecutorService(executor);
+				binding.setMarshalChunkSize(10);
+				binding.setMaxChunksInFlight(3);
+				assertEquals(expected, marshal(binding, company));
+				// positional writes for the fixed length records
+				FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+				try {
+					channel.truncate(0);
+					binding.marshal(channel, new BeanInstance<Company>(company));
+				}
+				finally {
+					channel.close();
+				}
+				assertEquals(expected, new String(Files.readAllBytes(file.toPath()), binding.getCharset()));
+			}
+		}
+		finally {
+			executor.shutdown();
+			file.delete();
+		}
+	}
+	
+	public void testNestedParallelMarshal() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("complex-binding.xml"));
+		final FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("ISO-8859-1")).getNamedBinding("companies");
+		final Companies companies = new Companies();
+		companies.setCompanies(new ArrayList<Company>());
+		for (int i = 0; i < 25; i++) {
+			companies.getCompanies().add(newCompany(25));
+		}
+		final String expected = marshal(binding, companies);
+		// both the companies and the employees in each company are longer than a chunk, the employees must not wait for the single worker
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		ExecutorService caller = Executors.newSingleThreadExecutor();
+		try {
+			binding.setExecutorService(executor);
+			binding.setMarshalChunkSize(10);
+			Future<String> result = caller.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return marshal(binding, companies);
+				}
+			});
+			assertEquals(expected, result.get(30, TimeUnit.SECONDS));
+		}
+		finally {
+			caller.shutdownNow();
+			executor.shutdownNow();
+		}
+	}
+	
+	public void testStreamedMarshal() throws IOException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("ISO-8859-1"));
+		Company company = newCompany(25);
+		String expected = marshal(binding, company);
+		// the employees are only available through the iterator
+		Iterator<Company.Employee> employees = company.getEmployees().iterator();
+		company.setEmployees(null);
+		ByteBuffer buffer = IOUtils.newByteBuffer();
+		binding.marshal(IOUtils.toOutputStream(buffer), new BeanInstance<Company>(company), "employees", employees);
+		assertEquals(expected, IOUtils.toString(IOUtils.wrapReadable(buffer, binding.getCharset())));
+		try {
+			binding.marshal(IOUtils.toOutputStream(buffer), new BeanInstance<Company>(company), "unknown", employees);
+			fail("The path does not exist");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testListener() throws IOException, ParseException, JMException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		FlatBindingMetrics metrics = new FlatBindingMetrics();
+		binding.setListener(metrics);
+		validate(unmarshal(binding, "flat-input.csv", Company.class));
+		assertEquals(1, metrics.getParses());
+		assertEquals(0, metrics.getFailedParses());
+		assertTrue(metrics.getCharacters() > 0);
+		assertEquals(new Long(24), metrics.getMatchedRecords().get("employees"));
+		// the footer ends the list of employees
+		assertTrue(metrics.getFailedRecords().get("employees") > 0);
+		assertTrue(metrics.getRecordResets().get("employees") > 0);
+		assertTrue(metrics.getFormatterCalls() > 0);
+		assertTrue(metrics.getMaxRecordLength() > 0 && metrics.getMaxRecordLength() <= metrics.getLookAhead());
+		try {
+			unmarshal(binding, "flat-no-footer.csv", Company.class);
+			fail("Should fail");
+		}
+		catch (ParseException e) {
+			assertEquals(1, metrics.getFailedParses());
+		}
+		ObjectName name = metrics.register("test");
+		try {
+			assertEquals(2l, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Parses"));
+		}
+		finally {
+			metrics.unregister();
+		}
+	}
+
+	public void testProfiler() throws IOException, ParseException {
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		FlatBindingProfiler profiler = new FlatBindingProfiler();
+		binding.setListener(profiler);
+		validate(unmarshal(binding, "flat-input.csv", Company.class));
+		// without profiling, the statistics are not detailed enough
+		assertEquals(0, profiler.getParses());
+		binding.setProfiling(true);
+		validate(unmarshal(binding, "flat-input.csv", Company.class));
+		assertEquals(1, profiler.getParses());
+		assertTrue(profiler.getWasted() > 0);
+		FlatBindingProfiler.FragmentCost employees = null;
+		for (FlatBindingProfiler.FragmentCost cost : profiler.getCosts()) {
+			if (cost.getName().equals("employees")) {
+				employees = cost;
+			}
+		}
+		assertNotNull(employees);
+		// the footer is tried as an employee before the list ends
+		assertTrue(employees.getFailures() > 0);
+		assertTrue(employees.getWasted() > 0);
+		assertTrue(employees.getUseful() > employees.getWasted());
+		assertFalse(employees.getPositions().isEmpty());
+		assertTrue(profiler.toText(10).contains("employees"));
+		assertTrue(profiler.toJSON(10).startsWith("{\"parses\": 1"));
+	}
+
+	public void testAnalyzer() throws IOException, ParseException {
+		ComplexType type = new BeanInstance<Company>(new Company()).getType();
+		for (String name : new String[] { "binding.xml", "fixed-binding.xml" }) {
+			FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource(name));
+			FlatBindingAnalyzer analyzer = new FlatBindingAnalyzer(config, type);
+			assertTrue(analyzer.getFindings().toString(), analyzer.getFindings(Severity.ERROR).isEmpty());
+			for (FlatBindingAnalyzer.Estimate estimate : analyzer.getEstimates()) {
+				if (estimate.getName().equals("employees")) {
+					// the id is the identifying field
+					assertEquals(name.equals("binding.xml") ? CompiledFlatBinding.DEFAULT_DELIMITED_BUFFER_SIZE + 1 : 5, estimate.getFailureCost());
+				}
+			}
+		}
+		FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource("binding.xml"));
+		Record employees = (Record) config.getChildren().get(1);
+		// without an identifier the employees also match the footer
+		((Field) employees.getChildren().get(0)).setMatch(null);
+		((Field) employees.getChildren().get(3)).setMatch(null);
+		((Field) employees.getChildren().get(1)).setSeparator("[,;]");
+		FlatBindingAnalyzer analyzer = new FlatBindingAnalyzer(config, type);
+		assertEquals(FlatBindingAnalyzer.Problem.GREEDY_LIST, analyzer.getFindings(Severity.ERROR).get(0).getProblem());
+		boolean regex = false;
+		for (FlatBindingAnalyzer.Finding finding : analyzer.getFindings(Severity.WARNING)) {
+			regex |= finding.getProblem() == FlatBindingAnalyzer.Problem.REGEX_SEPARATOR;
+		}
+		assertTrue(regex);
+		FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+		binding.setValidateLayout(true);
+		try {
+			unmarshal(binding, "flat-input.csv", Company.class);
+			fail("The layout should be rejected");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testAccessors() {
+		Company company = new Company();
+		BeanInstance<Company> content = new BeanInstance<Company>(company);
+		new ContentAccessor("@name").set(content, "Nabu");
+		assertEquals("Nabu", company.getName());
+		// the bean does not have to be wrapped to read from it
+		assertEquals("Nabu", new ContentAccessor("@name").get(company));
+		ContentAccessor employees = new ContentAccessor("employees");
+		for (int i = 0; i < 3; i++) {
+			Company.Employee employee = new Company.Employee();
+			BeanInstance<Company.Employee> employeeContent = new BeanInstance<Company.Employee>(employee);
+			// the value is converted to the type of the property
+			new ContentAccessor("age").set(employeeContent, "" + (30 + i));
+			assertEquals(new Integer(30 + i), employee.getAge());
+			assertTrue(employees.add(content, employeeContent));
+		}
+		assertEquals(3, company.getEmployees().size());
+		assertEquals(new Integer(32), company.getEmployees().get(2).getAge());
+		assertTrue(company.getEmployees() == employees.get(content));
+		
+		// the element "code" is mapped to getId(), the derived getCode() is not part of the type and must not be used
+		Renamed renamed = new Renamed();
+		BeanInstance<Renamed> renamedContent = new BeanInstance<Renamed>(renamed);
+		new ContentAccessor("code").set(renamedContent, "A1");
+		assertEquals("A1", renamed.getId());
+		assertNull(renamed.getCode());
+		assertEquals("A1", new ContentAccessor("code").get(renamed));
+	}
+
+	public void testFormatterScope() throws ClassNotFoundException, InstantiationException, IllegalAccessException, InterruptedException {
+		final FieldFormatter shared = new FieldFormatter("be.nabu.libs.types.simple.Date", null, FieldFormatter.toScope("shared"));
+		final FieldFormatter thread = new FieldFormatter("be.nabu.libs.types.simple.Date", null, null);
+		assertEquals(FieldFormatter.Scope.THREAD, thread.getScope());
+		final Object [] instances = new Object[2];
+		Thread other = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					instances[0] = shared.getInstance();
+					instances[1] = thread.getInstance();
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		other.start();
+		other.join();
+		// a shared instance is used by all threads, a thread instance is only reused by its own thread
+		assertTrue(shared.getInstance() == shared.getInstance());
+		assertTrue(shared.getInstance() == instances[0]);
+		assertTrue(thread.getInstance() == thread.getInstance());
+		assertTrue(instances[1] != null && thread.getInstance() != instances[1]);
+		// a released thread gets a new instance
+		Object before = thread.getInstance();
+		thread.release();
+		assertTrue(thread.getInstance() != before);
+		// the class is resolved with the class loader of the caller, a loader that does not know the formatter can not use it
+		ClassLoader original = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[0], null));
+		try {
+			thread.getInstance();
+			fail("The formatter is not visible to the class loader");
+		}
+		catch (ClassNotFoundException e) {
+			// expected
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(original);
+		}
+		assertTrue(shared.getInstance() != null && thread.getInstance() != null);
+		
+		Field field = new Field();
+		field.setMap("startDay");
+		field.setFormatter("be.nabu.libs.types.simple.Date");
+		field.setFormatterScope("global");
+		try {
+			new CompiledField(field, null);
+			fail("The scope is not valid");
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("global") && e.getMessage().contains(field.toString()));
+		}
+	}
+
+	public void testDateDecoderTimeZone() throws ParseException {
+		TimeZone original = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+		try {
+			Field field = new Field();
+			field.setMap("startDay");
+			field.setFormatter("be.nabu.libs.types.simple.Date");
+			field.setOtherAttributes(new HashMap<QName, String>());
+			field.getOtherAttributes().put(new QName("format"), "yyyyMMddHHmmss");
+			CompiledField compiled = new CompiledField(field, new BeanInstance<Company.Employee>(new Company.Employee()).getType());
+			assertNotNull(compiled.getDecoder());
+			// the decoder and the formatter agree in winter and summer time and around the switch
+			for (String value : new String[] { "20140115083000", "20140715083000", "20140309013000", "20141102013000", "20141231235959" }) {
+				assertEquals(value, compiled.getFormatter().unmarshal(value), compiled.getDecoder().decode(value.toCharArray(), 0, value.length()));
+			}
+		}
+		finally {
+			TimeZone.setDefault(original);
+		}
+	}
+	
+	public void testDecoders() throws ParseException {
+		char [] characters = "x-00123|12.50|  007|2014-02-29|20140228".toCharArray();
+		assertEquals(new Integer(-123), new FieldDecoder.IntegerDecoder().decode(characters, 1, 6));
+		assertEquals(new Long(7), new FieldDecoder.LongDecoder().decode(characters, 16, 3));
+		// anything that is not a plain number is left to the regular conversion
+		assertNull(new FieldDecoder.IntegerDecoder().decode(characters, 8, 5));
+		assertNull(new FieldDecoder.IntegerDecoder().decode(characters, 14, 5));
+		assertNull(new FieldDecoder.IntegerDecoder().decode("3000000000".toCharArray(), 0, 10));
+		assertEquals(new BigDecimal("12.50"), new FieldDecoder.DecimalDecoder(0).decode(characters, 8, 5));
+		assertEquals(new BigDecimal("0.1250"), new FieldDecoder.DecimalDecoder(2).decode(characters, 8, 5));
+		assertEquals(new Double(-1.23), new FieldDecoder.DoubleDecoder(2).decode(characters, 1, 6));
+		assertEquals(new Double(-0.0), new FieldDecoder.DoubleDecoder(0).decode("-0".toCharArray(), 0, 2));
+		
+		// dates give the same result as the formatter, impossible dates are left to it
+		FieldDecoder dates = FieldDecoder.DateDecoder.compile("yyyyMMdd");
+		assertEquals(new SimpleDateFormat("yyyyMMdd").parse("20140228"), dates.decode(characters, 31, 8));
+		assertNull(FieldDecoder.DateDecoder.compile("yyyy-MM-dd").decode(characters, 20, 10));
+		assertNull(FieldDecoder.DateDecoder.compile("dd MMM yyyy"));
+		
+		Field field = new Field();
+		field.setMap("amount");
+		field.setImpliedDecimals(2);
+		assertEquals("1235", FlatBinding.toImpliedDecimals(new CompiledField(field, null), new BigDecimal("12.345")));
+	}
+
+	public void testGenerator() throws IOException, ParseException {
+		Random random = new Random(1);
+		for (int i = 0; i < 100; i++) {
+			String value = new RegexGenerator("[A-Z]{2}[0-9]{3}(-[a-z]+)?|x\\d+", random).generate();
+			assertTrue(value, value.matches("[A-Z]{2}[0-9]{3}(-[a-z]+)?|x\\d+"));
+		}
+		for (String name : new String[] { "binding.xml", "fixed-binding.xml" }) {
+			FlatBindingConfig config = FlatBindingConfig.load(Thread.currentThread().getContextClassLoader().getResource(name));
+			FlatBinding binding = new FlatBinding(DefinedTypeResolverFactory.getInstance().getResolver(), config, Charset.forName("UTF-8"));
+			FlatFileGenerator generator = new FlatFileGenerator(config, new BeanInstance<Company>(new Company()).getType(), binding.getCharset());
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			assertTrue(generator.generate(output, 100000) >= 100000);
+			Company result = unmarshal(binding, new ByteArrayInputStream(output.toByteArray()), Company.class);
+			assertNotNull(result);
+			assertTrue(result.getEmployees().size() > 1000);
+			// the same seed generates the same file
+			ByteArrayOutputStream again = new ByteArrayOutputStream();
+			generator.generate(again, 100000);
+			assertTrue(Arrays.equals(output.toByteArray(), again.toByteArray()));
+			// every value is corrupted
+			generator.setErrorRate(1);
+			output.reset();
+			generator.generate(output, 10000);
+			assertTrue(generator.getErrors() > 0);
+			try {
+				assertNull(unmarshal(binding, new ByteArrayInputStream(output.toByteArray()), Company.class));
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+	}
+
+	private Company newCompany(int amount) {
+		Company company = new Company();
+		company.setName("Nabu");
+		company.setAddress("Nabu HQ");
+		company.setBillingNumber("BE666-66-66");
+		List<Company.Employee> employees = new ArrayList<Company.Employee>();
+		for (int i = 0; i < amount; i++) {
+			Company.Employee employee = new Company.Employee();
+			employee.setId("" + (i + 1));
+			employee.setFirstName(i % 2 == 0 ? "John" : "Jane");
+			employee.setLastName("Doe");
+			employee.setAge(i % 2 == 0 ? 31 : 100);
+			employees.add(employee);
+		}
+		company.setEmployees(employees);
+		return company;
+	}
+
+	private String marshal(FlatBinding binding, Object bean) throws IOException {
+		ByteBuffer buffer = IOUtils.newByteBuffer();
+		binding.marshal(IOUtils.toOutputStream(buffer), new BeanInstance<Object>(bean));
+		return IOUtils.toString(IOUtils.wrapReadable(buffer, binding.getCharset()));
+	}
 	
 	public <T> T unmarshal(FlatBinding binding, String name, Class<T> beanType) throws IOException, ParseException {
 		return unmarshal(binding, Thread.currentThread().getContextClassLoader().getResourceAsStream(name), beanType);
@@ -155,4 +976,23 @@ public class TestFlat extends TestCase {
 		assertEquals("Nabu HQ", result.getAddress());
 		assertEquals("BE666-66-66", result.getBillingNumber());
 	}
+	public static class Renamed {
+		private String id, code;
+		
+		@XmlElement(name = "code")
+		public String getId() {
+			return id;
+		}
+		public void setId(String id) {
+			this.id = id;
+		}
+		
+		@XmlTransient
+		public String getCode() {
+			return code;
+		}
+		public void setCode(String code) {
+			this.code = code;
+		}
+	}
 }